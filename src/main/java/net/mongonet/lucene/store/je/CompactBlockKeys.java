@@ -0,0 +1,72 @@
+package net.mongonet.lucene.store.je;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+
+/**
+ * Offline migration of an environment's index files to compact block keys.
+ * Blocks are streamed from __blocks__ to __blocks_v2__ in batches, one file
+ * at a time, so that the migration runs in bounded memory and can be
+ * interrupted and run again.  Nothing else may have the environment open.
+ *
+ *   java net.mongonet.lucene.store.je.CompactBlockKeys <env home> [batch size]
+ *
+ * @see org.apache.lucene.store.je.JEDirectory#compactBlockKeys
+ */
+
+public class CompactBlockKeys {
+
+    public static void main(String[] args) throws Exception
+    {
+	if (args.length < 1 || args.length > 2)
+	    {
+		System.err.println("usage: CompactBlockKeys <env home> [batch size]");
+		System.exit(1);
+	    }
+
+	int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+	EnvironmentConfig envConfig = new EnvironmentConfig();
+	DatabaseConfig dbConfig = new DatabaseConfig();
+
+	envConfig.setTransactional(true);
+	dbConfig.setTransactional(true);
+	// __sequences__ and __blocks_v2__ don't exist in older environments
+	dbConfig.setAllowCreate(true);
+
+	Environment env = new Environment(new File(args[0]), envConfig);
+	try {
+	    JEMongoDirectory directory = new JEMongoDirectory(env, dbConfig);
+	    try {
+		int count = directory.compactBlockKeys(batchSize);
+		System.out.println("moved " + count + " files to compact block keys");
+	    }
+	    finally {
+		directory.close();
+	    }
+	    env.sync();
+	}
+	finally {
+	    env.close();
+	}
+    }
+}
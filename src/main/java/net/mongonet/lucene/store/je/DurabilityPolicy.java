@@ -0,0 +1,126 @@
+package net.mongonet.lucene.store.je;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexFileNames;
+
+import com.sleepycat.je.Durability;
+
+/**
+ * Maps index file names to the durability their transactions are committed with.
+ * A name is looked up as a whole first, then by the longest prefix set for it, then
+ * by its extension.  Names matching none of these get the default durability, where
+ * <code>null</code> stands for the environment's own.
+ *
+ * Policies are meant to be set up before they are handed to a directory.
+ *
+ * @see JEMongoDirectory#setDurabilityPolicy
+ */
+
+public class DurabilityPolicy {
+
+    protected Durability defaultDurability;
+    protected Map<String, Durability> names = new HashMap<String, Durability>();
+    protected Map<String, Durability> prefixes = new HashMap<String, Durability>();
+    protected Map<String, Durability> extensions = new HashMap<String, Durability>();
+    protected boolean deferSync;
+
+    public DurabilityPolicy(Durability defaultDurability)
+    {
+	this.defaultDurability = defaultDurability;
+    }
+
+    /*
+     *  The policy Lucene's commit protocol needs, at one log sync per commit: segments_N is
+     *  synced on commit, everything else is committed without syncing.  Since JE's log is
+     *  written in order, syncing the commit point's commit makes the segment data committed
+     *  before it durable as well, so the directory's sync() of that data is deferred to it.
+     *  segments.gen, which Lucene never syncs, becomes durable with the next commit point.
+     */
+    public static DurabilityPolicy lucene()
+    {
+	DurabilityPolicy policy = new DurabilityPolicy(Durability.COMMIT_NO_SYNC);
+
+	policy.setPrefix(IndexFileNames.SEGMENTS + "_", Durability.COMMIT_SYNC);
+	policy.setDeferSync(true);
+	return policy;
+    }
+
+    public DurabilityPolicy setName(String name, Durability durability)
+    {
+	names.put(name, durability);
+	return this;
+    }
+
+    public DurabilityPolicy setPrefix(String prefix, Durability durability)
+    {
+	prefixes.put(prefix, durability);
+	return this;
+    }
+
+    /*
+     *  @extension
+     *       the extension, without the dot, e.g. "frq"
+     */
+    public DurabilityPolicy setExtension(String extension, Durability durability)
+    {
+	extensions.put(extension, durability);
+	return this;
+    }
+
+    /*
+     *  Lets the directory's sync() leave the files it is given to the next synced commit, such as
+     *  the commit point's that Lucene writes after syncing its segment data, instead of syncing
+     *  the log itself.  Files are then only durable once that commit is.
+     *
+     *  @deferSync
+     *       whether sync() leaves syncing the log to the next synced commit
+     */
+    public DurabilityPolicy setDeferSync(boolean deferSync)
+    {
+	this.deferSync = deferSync;
+	return this;
+    }
+
+    public boolean getDeferSync()
+    {
+	return deferSync;
+    }
+
+    public Durability getDurability(String name)
+    {
+	if (names.containsKey(name))
+	    return names.get(name);
+
+	String longest = null;
+	for (String prefix : prefixes.keySet())
+	    if (name.startsWith(prefix) && (longest == null || prefix.length() > longest.length()))
+		longest = prefix;
+	if (longest != null)
+	    return prefixes.get(longest);
+
+	int dot = name.lastIndexOf('.');
+	if (dot >= 0 && extensions.containsKey(name.substring(dot + 1)))
+	    return extensions.get(name.substring(dot + 1));
+
+	return defaultDurability;
+    }
+}
@@ -22,11 +22,13 @@ import java.io.DataInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.IndexInput;
@@ -41,9 +43,14 @@ import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Durability;
 import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Sequence;
+import com.sleepycat.je.SequenceConfig;
+import com.sleepycat.je.SequenceNotFoundException;
 import com.sleepycat.je.Transaction;
 import java.io.IOException;
+import org.apache.lucene.store.je.BlockReclaimer;
 import org.apache.lucene.store.je.JEDirectory;
 import org.apache.lucene.store.je.File;
 /**
@@ -61,6 +68,15 @@ public class JEMongoDirectory extends JEDirectory {
 
     protected Environment env;
     protected DatabaseConfig dbConfig;
+    protected Database reclaim;
+    protected Database sequences;
+    protected Database compact;
+    // group commit: commits made without syncing, and how many of them the last sync covered
+    protected boolean groupCommit;
+    protected AtomicLong commits = new AtomicLong();
+    protected long durable;
+    protected Object syncLock = new Object();
+    protected DurabilityPolicy durabilityPolicy;
 
 
 
@@ -86,51 +102,155 @@ public class JEMongoDirectory extends JEDirectory {
 	this.dbConfig = dbConfig;
 	try {
 	    beginTransaction();
-	    this.files = env.openDatabase(txn, "__index__", dbConfig);
-	    this.blocks = env.openDatabase(txn, "__blocks__", dbConfig);
+	    this.files = env.openDatabase(getTransaction(), "__index__", dbConfig);
+	    this.blocks = env.openDatabase(getTransaction(), "__blocks__", dbConfig);
+	    this.sequences = openOptional(getTransaction(), "__sequences__", dbConfig);
+	    // blocks of files with compact keys, see setCompactBlockKeys
+	    this.compact = openOptional(getTransaction(), "__blocks_v2__", dbConfig.clone().setKeyPrefixing(true));
+	    // write.lock and the like, shared by all directories on the environment; in-memory locks without it
+	    this.locks = openOptional(getTransaction(), "__locks__", dbConfig);
 	} 
 	catch (DatabaseException e) {
 	    abortTransaction();
-	    this.files = null;
-	    this.blocks = null;
+	    closeQuietly();
 	    throw e;
 	} 
 	finally {
 	    commitTransaction();
 	}
-	
+	try {
+	    // file ids come from a sequence, so new files need no uuid probing
+	    if (sequences != null)
+		{
+		    SequenceConfig sequenceConfig = new SequenceConfig();
+		    sequenceConfig.setAllowCreate(dbConfig.getAllowCreate());
+		    sequenceConfig.setInitialValue(1L);
+		    sequenceConfig.setCacheSize(64);
+		    setFileIdSequence(sequences.openSequence(null, new DatabaseEntry("fileIds".getBytes("UTF-8")), sequenceConfig));
+		}
+	}
+	catch (SequenceNotFoundException e) {
+	    // no file was created with a sequence id yet, and none may be: random uuids then
+	}
+	catch (DatabaseException e) {
+	    closeQuietly();
+	    throw e;
+	}
+	setCompactBlocks(compact);
+
+    }
+
+    /*
+     *  Opens a database added in a later version, or returns null when it doesn't exist and may
+     *  not be created, as in older environments opened for searching only.  Its feature is off then.
+     */
+    protected Database openOptional(Transaction txn, String name, DatabaseConfig config) throws DatabaseException{
+	if (!config.getAllowCreate() && !env.getDatabaseNames().contains(name))
+	    return null;
+	return env.openDatabase(txn, name, config);
+    }
+
+    protected void closeQuietly(){
+	try {
+	    closeDatabases();
+	}
+	catch(DatabaseException ignored){
+	}
+    }
+
+    /*
+     *  Closes the sequence and the databases opened so far.
+     */
+    protected void closeDatabases() throws DatabaseException{
+	if (reclaim != null)
+	    reclaim.close();
+	if (fileIds != null)
+	    fileIds.close();
+	if (sequences != null)
+	    sequences.close();
+	if (compact != null)
+	    compact.close();
+	if (locks != null)
+	    locks.close();
+	if (files != null)
+            files.close();
+        if (blocks != null)
+            blocks.close();
+	reclaim = null;
+	fileIds = null;
+	sequences = null;
+	compact = null;
+	locks = null;
+	files = null;
+	blocks = null;
     }
 
     @Override
     public void close() throws IOException {
         flush();
-	if (txn != null)
+	if (transactionInProgress())
 	    {
 		System.err.println("WARNING: JEDirectory.close -- auto commiting open transaction!");
 		abortTransaction();
 	    }
-	if (files != null)
-            files.close();
-        if (blocks != null)
-            blocks.close();
+	syncCommits();
+	if (writer != null)
+	    writer.shutdown();
+	stopSync();
+	if (reclaimer != null)
+	    reclaimer.close();
+	stopLocks();
+	try {
+	    closeDatabases();
+	}
+	catch(DatabaseException e){
+	    throw new IOException(e);
+	}
     }
 
 
     /*
-     *  Creates a file from the directory.  If no transaction is active, one is started with
-     *  the given TransactionConfig.  To revert this method to old behaviour simply use setTransaction 
+     *  Creates a file from the directory.  If the calling thread has no transaction in progress,
+     *  the output begins one of its own and commits it when it is closed, so that outputs
+     *  written by different threads, e.g. concurrent merges, don't share a transaction.
+     *  That transaction is committed with the durability the policy gives the file's name.
+     *  To revert this method to old behaviour simply use setTransaction 
      *
      *  @name
-     *       Name of file to delete
+     *       Name of file to create
      *
      */
 
     @Override
     public IndexOutput createOutput(String name) throws IOException {
-	if (!transactionInProgress())
-	    beginTransaction();
+	if (transactionInProgress())
+	    return new JEMongoIndexOutput(this, name, true);
 
-        return new JEMongoIndexOutput(this, name, true);
+	Transaction own;
+	TransactionConfig config = null;
+	Durability durability = getDurability(name);
+	if (durability != null)
+	    {
+		config = new TransactionConfig();
+		config.setDurability(durability);
+	    }
+	try {
+	    own = env.beginTransaction(null, config);
+	}
+	catch(DatabaseException e){
+	    throw new IOException(e);
+	}
+	try {
+	    return new JEMongoIndexOutput(this, name, true, own, true);
+	}
+	catch(IOException e){
+	    try {
+		own.abort();
+	    }
+	    catch(DatabaseException ignored){
+	    }
+	    throw e;
+	}
     }
 
     /*
@@ -168,48 +288,186 @@ public class JEMongoDirectory extends JEDirectory {
     }
 
 
+    /*
+     *  Starts deleting the blocks of deleted files in the background, keeping track of the
+     *  files not reclaimed yet in the __reclaim__ database.  Files left over by an earlier
+     *  reclaimer, that was closed or crashed, are reclaimed first.
+     *
+     *  @batchSize
+     *       the maximum number of blocks deleted per transaction
+     *  @blocksPerSecond
+     *       the maximum number of blocks deleted per second, 0 for no limit
+     */
+    public void startReclaimer(int batchSize, int blocksPerSecond) throws IOException{
+	if (reclaimer != null)
+	    return;
+	try {
+	    if (reclaim == null)
+		reclaim = env.openDatabase(null, "__reclaim__", dbConfig);
+	}
+	catch(DatabaseException e){
+	    throw new IOException(e);
+	}
+	BlockReclaimer reclaimer = new BlockReclaimer(this, reclaim, batchSize, blocksPerSecond);
+	setBlockReclaimer(reclaimer);
+	reclaimer.start();
+    }
+
     public void beginTransaction() throws IOException{
 	this.beginTransaction(null,null);
     }
     
+    /*
+     *  Transactions begun, committed and aborted here belong to the calling thread; other
+     *  threads keep running in theirs, or non-transactionally.
+     */
     public void beginTransaction(Transaction parent, TransactionConfig transConfig) throws IOException{
-	if (txn != null){
+	if (threadTxn.get() != null){
 	    System.err.println("WARNING: JEDirectory.beginTransaction -- transaction already open.  Aborting it!");
 	    abortTransaction();
 	}
 	try {
-	    txn = env.beginTransaction(parent, transConfig);
+	    threadTxn.set(env.beginTransaction(parent, transConfig));
 	}
 	catch(DatabaseException e){
 	    throw new IOException(e);
 	}
     }
     public void commitTransaction() throws IOException{
+	Transaction txn = threadTxn.get();
 	if (txn != null)
 	    {
-		try {
-		    txn.commit();
+		threadTxn.remove();
+		commit(txn);
+	    }
+    }
+    protected void commit(Transaction txn) throws IOException{
+	commit(txn, null);
+    }
+    /*
+     *  Commits a transaction of this directory with the given durability.  Without one, the
+     *  transaction is committed without syncing the log when group commit is on, and with the
+     *  environment's durability otherwise.  Commits not known to be synced are counted for syncCommits.
+     */
+    protected void commit(Transaction txn, Durability durability) throws IOException{
+	if (durability == null && groupCommit)
+	    durability = Durability.COMMIT_NO_SYNC;
+	try {
+	    if (durability != null && durability.getLocalSync() == Durability.SyncPolicy.SYNC)
+		{
+		    // syncing the log up to this commit also makes the commits before it durable
+		    long upTo = commits.get();
+		    txn.commit(durability);
+		    synchronized (syncLock) {
+			durable = Math.max(durable, upTo);
+		    }
 		}
-		catch(DatabaseException e){
-		    txn = null;
-		    throw new IOException(e);
+	    else
+		{
+		    // a default commit is as durable as the environment and transaction configs
+		    // make it, e.g. not synced with TxnNoSync: count it as not synced either
+		    if (durability == null)
+			txn.commit();
+		    else
+			txn.commit(durability);
+		    commits.incrementAndGet();
 		}
-		txn = null;
-	    }
+	}
+	catch(DatabaseException e){
+	    throw new IOException(e);
+	}
+    }
+
+    /*
+     *  Turns group commit on or off.  With group commit on, the transactions this directory commits,
+     *  those of outputs and deletes in particular, are committed without syncing the log.  They all
+     *  become durable together at the next sync, which Lucene calls at its commit points, or close.
+     *
+     *  @groupCommit
+     *       whether to defer syncing commits to sync()
+     */
+    public void setGroupCommit(boolean groupCommit){
+	this.groupCommit = groupCommit;
+    }
+    public boolean getGroupCommit(){
+	return groupCommit;
+    }
+
+    /*
+     *  Sets the policy giving the durability of the transactions outputs begin on their own,
+     *  see createOutput.  DurabilityPolicy.lucene() leaves syncing segment data to sync(),
+     *  which Lucene calls before it writes the commit point.
+     *
+     *  @policy
+     *       the policy, or null to commit outputs as the other transactions
+     */
+    public void setDurabilityPolicy(DurabilityPolicy policy){
+	this.durabilityPolicy = policy;
+    }
+    public DurabilityPolicy getDurabilityPolicy(){
+	return durabilityPolicy;
+    }
+    protected Durability getDurability(String name){
+	return durabilityPolicy == null ? null : durabilityPolicy.getDurability(name);
+    }
+
+    /*
+     *  Flushes the open outputs of the named files and forces the data committed without
+     *  syncing so far to disk.  The outputs' data becomes durable when they are committed.
+     *  Under a durability policy deferring syncs, such as DurabilityPolicy.lucene(), the data
+     *  is only forced to disk by the next synced commit, the commit point's.
+     */
+    @Override
+    public void sync(Collection<String> names) throws IOException{
+	flush(names);
+	if (durabilityPolicy != null && durabilityPolicy.getDeferSync())
+	    return;
+	syncCommits();
+    }
+
+    /*
+     *  Makes the commits made without syncing so far durable, with a single synced commit of a
+     *  marker record rather than a checkpoint, see syncLog.  Concurrent callers share that commit:
+     *  a caller whose commits were covered by a sync in progress doesn't sync again.
+     */
+    public void syncCommits() throws IOException{
+	long target = commits.get();
+	synchronized (syncLock) {
+	    if (durable >= target)
+		return;
+	    // syncing the log up to the marker's commit also makes the commits before it durable
+	    long upTo = commits.get();
+	    syncLog();
+	    durable = Math.max(durable, upTo);
+	}
     }
     public void abortTransaction() throws IOException{
+	Transaction txn = threadTxn.get();
 	if (txn != null)
-	    try {
-		txn.abort();
-	    }
-	    catch(DatabaseException e){
-		txn = null;
-		throw new IOException(e);
+	    {
+		threadTxn.remove();
+		abort(txn);
 	    }
-	txn = null;
+    }
+    /*
+     *  Aborts a transaction of this directory, dropping what may have been cached from it.
+     */
+    protected void abort(Transaction txn) throws IOException{
+	try {
+	    txn.abort();
+	}
+	catch(DatabaseException e){
+	    throw new IOException(e);
+	}
+	finally {
+	    // records read inside the aborted transaction may be gone
+	    if (blockCache != null)
+		blockCache.clear();
+	    clearFileCache();
+	}
     }
     public boolean transactionInProgress(){
-	return txn != null;
+	return threadTxn.get() != null;
     }
     public boolean good(){
 	return this.env != null && this.files != null && this.blocks != null;
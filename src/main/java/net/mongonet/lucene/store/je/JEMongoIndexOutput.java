@@ -22,6 +22,9 @@ import java.io.IOException;
 import org.apache.lucene.store.IndexOutput;
 import net.mongonet.lucene.store.je.JEMongoDirectory;
 import org.apache.lucene.store.je.JEIndexOutput;
+
+import com.sleepycat.je.Durability;
+import com.sleepycat.je.Transaction;
 /**
  * Port of Andi Vajda's DbDirectory to Java Edition of Berkeley Database
  *
@@ -30,16 +33,41 @@ import org.apache.lucene.store.je.JEIndexOutput;
 public class JEMongoIndexOutput  extends JEIndexOutput {
 
 
+    // the output's own transaction, committed on close when owned; null to write in the thread's
+    protected Transaction txn;
+    protected boolean owned;
+    protected Durability durability;
+
     protected JEMongoIndexOutput(JEMongoDirectory directory, String name, boolean create)
             throws IOException {
-        super(directory,name,create);
+        this(directory,name,create,null,false);
+    }
+
+    protected JEMongoIndexOutput(JEMongoDirectory directory, String name, boolean create, Transaction txn, boolean owned)
+            throws IOException {
+        super(directory,name,create,txn);
+	this.txn = txn;
+	this.owned = owned;
+	this.durability = directory.getDurability(name);
     }
 
     @Override
     public void close() throws IOException {
-	super.close();
-	
-	((JEMongoDirectory)directory).commitTransaction();
+	if (!owned)
+	    {
+		super.close();
+		return;
+	    }
+	try {
+	    super.close();
+	}
+	catch(IOException e){
+	    owned = false;
+	    ((JEMongoDirectory)directory).abort(txn);
+	    throw e;
+	}
+	owned = false;
+	((JEMongoDirectory)directory).commit(txn, durability);
     }
 
 }
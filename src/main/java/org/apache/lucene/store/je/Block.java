@@ -18,9 +18,16 @@ package org.apache.lucene.store.je;
  */
 
 import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
 
 /**
  * Port of Andi Vajda's DbDirectory to Java Edition of Berkeley Database
@@ -28,15 +35,108 @@ import com.sleepycat.je.DatabaseException;
  */
 
 public class Block extends Object {
+
+    /**
+     * The size of the header starting every block of files written with a
+     * {@link BlockCodec}: the codec id and the size of the decoded block.
+     */
+    static protected final int HEADER_LEN = 5;
+
+    /**
+     * The size of the checksum following the header in the blocks of files
+     * written with checksums.
+     */
+    static protected final int CHECKSUM_LEN = 4;
+
+    static protected Constructor<? extends Checksum> crc32c;
+
+    static {
+        try {
+            crc32c = Class.forName("java.util.zip.CRC32C").asSubclass(
+                    Checksum.class).getConstructor();
+        } catch (Exception e) {
+            crc32c = null;
+        }
+    }
+
+    /**
+     * Whether the hardware accelerated CRC32C checksum of Java 9 and later is
+     * available. Otherwise blocks are written with CRC32 checksums.
+     */
+    static protected boolean hasCRC32C() {
+        return crc32c != null;
+    }
+
+    static protected Checksum newChecksum(boolean useCRC32C) {
+        if (useCRC32C) {
+            try {
+                return crc32c.newInstance();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return new CRC32();
+    }
+
+    /* one checksum of each kind per thread, reset before every use */
+    static protected ThreadLocal<Checksum[]> checksums = new ThreadLocal<Checksum[]>() {
+        @Override
+        protected Checksum[] initialValue() {
+            return new Checksum[2];
+        }
+    };
+
+    static protected Checksum getChecksum(boolean useCRC32C) {
+        Checksum[] cached = checksums.get();
+        int i = useCRC32C ? 1 : 0;
+
+        if (cached[i] == null)
+            cached[i] = newChecksum(useCRC32C);
+        else
+            cached[i].reset();
+
+        return cached[i];
+    }
     protected DatabaseEntry key, data;
 
+    protected File file;
+
+    /* the prefix of this block's key, whether the number is a varint */
+    protected byte[] fileKey;
+
+    protected boolean compact;
+
+    /* the block number, the file position of its first byte and its size */
+    protected long number, start;
+
+    protected int size;
+
+    /* the number of blocks before this one, whether data was allocated */
+    protected long index;
+
+    protected boolean allocated;
+
     protected Block(File file) throws IOException {
-        byte[] fileKey = file.getKey();
+        this(file, true);
+    }
 
-        key = new DatabaseEntry(new byte[fileKey.length + 8]);
-        data = new DatabaseEntry(new byte[JEIndexOutput.BLOCK_LEN]);
+    /**
+     * @param allocate
+     *            whether to allocate a data buffer; blocks that are only read
+     *            into don't need one since the database hands out a new array
+     *            on every read.
+     */
+    protected Block(File file, boolean allocate) throws IOException {
+        this.file = file;
+        if (file.hasKey()) {
+            fileKey = file.getBlockKey();
+            compact = file.isCompact();
+        }
+        key = new DatabaseEntry();
+        data = new DatabaseEntry(allocate ? new byte[1 << file.getBlockShift()] : null);
+        allocated = allocate;
 
-        System.arraycopy(fileKey, 0, key.getData(), 0, fileKey.length);
         seek(0L);
     }
 
@@ -44,40 +144,424 @@ public class Block extends Object {
         return key.getData();
     }
 
+    protected byte[] getFileKey() {
+        return fileKey;
+    }
+
+    protected long getNumber() {
+        return number;
+    }
+
+    protected long getIndex() {
+        return index;
+    }
+
+    protected long getStart() {
+        return start;
+    }
+
+    protected int getSize() {
+        return size;
+    }
+
     protected byte[] getData() {
         return data.getData();
     }
 
+    protected void setData(byte[] bytes) {
+        data.setData(bytes);
+    }
+
+    /**
+     * Positions this block on the block holding <code>position</code>. Blocks
+     * are numbered by their start in units of the file's smallest block size
+     * so that the numbers of files with growing extents stay in file order.
+     */
     protected void seek(long position) throws IOException {
+        index = file.getBlockIndex(position);
+        start = file.getBlockPosition(index);
+        size = file.getBlockSize(index);
+        number = start >>> file.getBlockShift();
+
+        /* an allocated buffer follows the block size as extents grow */
+        if (allocated && data.getData().length != size)
+            data.setData(new byte[size]);
+
+        /* blocks of files without an id yet get their key once it has one */
+        if (fileKey == null)
+            return;
+
+        /* compact keys change length with the number, keys are never padded */
         byte[] data = key.getData();
-        int index = data.length - 8;
+        int len = getKeyLength(number);
+
+        if (data == null || data.length != len) {
+            data = new byte[len];
+            System.arraycopy(fileKey, 0, data, 0, fileKey.length);
+            key.setData(data);
+        }
+
+        if (compact)
+            File.putVarLong(data, fileKey.length, number);
+        else
+            File.putLong(data, fileKey.length, number);
+    }
+
+    /**
+     * Keys this block once its file got an id after the block was created.
+     */
+    protected void bind() throws IOException {
+        if (fileKey == null) {
+            fileKey = file.getBlockKey();
+            compact = file.isCompact();
+            seek(start);
+        }
+    }
+
+    protected int getKeyLength(long number) {
+        return fileKey.length + (compact ? 1 + File.varLength(number) : 8);
+    }
+
+    /**
+     * Whether <code>bytes</code> is the key of block <code>number</code> of
+     * this block's file.
+     */
+    protected boolean isKey(byte[] bytes, long number) {
+        if (bytes.length != getKeyLength(number)
+                || !File.startsWith(bytes, fileKey))
+            return false;
+
+        if (compact)
+            return File.getVarLong(bytes, fileKey.length) == number;
+
+        return File.getLong(bytes, fileKey.length) == number;
+    }
+
+    protected boolean get(JEDirectory directory) throws IOException {
+        bind();
+
+        try {
+            if (file.getBlocks(directory).get(file.getTransaction(directory), key, data,
+                    directory.lockMode) == OperationStatus.NOTFOUND)
+                return false;
+        } catch (DatabaseException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        if ((file.flags & File.BLOCK_HEADER) != 0)
+            data.setData(decode(data.getData(), directory.verifyBlock()));
+
+        return true;
+    }
+
+    protected int getHeaderLength() {
+        return (file.flags & File.BLOCK_CHECKSUM) != 0 ? HEADER_LEN
+                + CHECKSUM_LEN : HEADER_LEN;
+    }
+
+    protected int getChecksum(byte[] record, int len) {
+        Checksum checksum = getChecksum((file.flags & File.BLOCK_CRC32C) != 0);
+
+        checksum.update(record, 0, HEADER_LEN);
+        checksum.update(record, HEADER_LEN + CHECKSUM_LEN, len - HEADER_LEN
+                - CHECKSUM_LEN);
+
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Encodes the data of this block, up to its size, into a record with a
+     * header, using the file's codec when it makes the block smaller.
+     */
+    protected DatabaseEntry encode() {
+        byte[] bytes = data.getData();
+        int len = data.getSize();
+        int header = getHeaderLength();
+        byte[] record = new byte[header + len];
+        BlockCodec codec = file.codec == null ? BlockCodec.NONE : file.codec;
+        int encoded = codec.encode(bytes, len, record, header);
 
-        position >>>= JEIndexOutput.BLOCK_SHIFT;
+        if (encoded < 0) {
+            codec = BlockCodec.NONE;
+            encoded = len;
+            System.arraycopy(bytes, 0, record, header, len);
+        }
+
+        record[0] = (byte) codec.getId();
+        record[1] = (byte) (len >>> 24);
+        record[2] = (byte) (len >>> 16);
+        record[3] = (byte) (len >>> 8);
+        record[4] = (byte) len;
+
+        if (header > HEADER_LEN) {
+            int checksum = getChecksum(record, header + encoded);
+
+            record[5] = (byte) (checksum >>> 24);
+            record[6] = (byte) (checksum >>> 16);
+            record[7] = (byte) (checksum >>> 8);
+            record[8] = (byte) checksum;
+        }
+
+        return new DatabaseEntry(record, 0, header + encoded);
+    }
+
+    /**
+     * Decodes a block record written by {@link #encode}.
+     * 
+     * @param verify
+     *            whether to check the block's checksum, if it has one
+     */
+    protected byte[] decode(byte[] record, boolean verify) throws IOException {
+        return decode(record, verify, number, size);
+    }
+
+    /**
+     * Decodes the record of block <code>number</code> of this block's file,
+     * of at most <code>size</code> bytes. A record whose header doesn't make
+     * sense is reported as damaged like a checksum mismatch.
+     */
+    protected byte[] decode(byte[] record, boolean verify, long number,
+            int size) throws IOException {
+        int header = getHeaderLength();
+
+        if (record.length < header)
+            throw new IOException(file.getName() + ": truncated block " + number);
+
+        if (verify && header > HEADER_LEN
+                && ((file.flags & File.BLOCK_CRC32C) == 0 || hasCRC32C())) {
+            int checksum = ((record[5] & 0xff) << 24) | ((record[6] & 0xff) << 16)
+                    | ((record[7] & 0xff) << 8) | (record[8] & 0xff);
+
+            if (checksum != getChecksum(record, record.length))
+                throw new IOException(file.getName()
+                        + ": checksum mismatch in block " + number);
+        }
+
+        int len = ((record[1] & 0xff) << 24) | ((record[2] & 0xff) << 16)
+                | ((record[3] & 0xff) << 8) | (record[4] & 0xff);
+
+        if (len < 0 || len > size)
+            throw new IOException(file.getName() + ": bad length " + len
+                    + " in block " + number);
+
+        BlockCodec codec;
+
+        try {
+            codec = BlockCodec.forId(record[0]);
+        } catch (IOException e) {
+            throw new IOException(file.getName() + ": " + e.getMessage()
+                    + " in block " + number);
+        }
+
+        if (codec == BlockCodec.NONE && record.length - header != len)
+            throw new IOException(file.getName() + ": bad length " + len
+                    + " in block " + number);
+
+        byte[] bytes = new byte[len];
+
+        codec.decode(record, header, record.length - header, bytes);
 
-        data[index + 0] = (byte) (0xff & (position >>> 56));
-        data[index + 1] = (byte) (0xff & (position >>> 48));
-        data[index + 2] = (byte) (0xff & (position >>> 40));
-        data[index + 3] = (byte) (0xff & (position >>> 32));
-        data[index + 4] = (byte) (0xff & (position >>> 24));
-        data[index + 5] = (byte) (0xff & (position >>> 16));
-        data[index + 6] = (byte) (0xff & (position >>> 8));
-        data[index + 7] = (byte) (0xff & (position >>> 0));
+        return bytes;
     }
 
-    protected void get(JEDirectory directory) throws IOException {
+    /**
+     * Reads this block and up to <code>count - 1</code> blocks following it
+     * with one cursor scan instead of one lookup per block. The scan stops at
+     * the first missing block.
+     * 
+     * @param ahead
+     *            receives the data of the blocks read, in order
+     * @return the number of blocks read
+     */
+    protected int get(JEDirectory directory, byte[][] ahead, int count)
+            throws IOException {
+        return get(directory, ahead, count, false);
+    }
+
+    /**
+     * @param verify
+     *            whether to check the checksum of every block read, rather
+     *            than of those the directory's verify mode samples
+     */
+    protected int get(JEDirectory directory, byte[][] ahead, int count,
+            boolean verify) throws IOException {
+        DatabaseEntry cursorKey = new DatabaseEntry(key.getData().clone());
+        DatabaseEntry cursorData = new DatabaseEntry();
+        Cursor cursor = null;
+        int found = 0;
+
         try {
-            // TODO check LockMode
-            directory.blocks.get(directory.txn, key, data, null);
+            try {
+                cursor = file.getBlocks(directory).openCursor(file.getTransaction(directory),
+                        directory.cursorConfig);
+
+                OperationStatus status = cursor.getSearchKey(cursorKey,
+                        cursorData, directory.cursorLockMode);
+
+                while (status != OperationStatus.NOTFOUND && found < count) {
+                    long expected = file.getBlockPosition(index + found)
+                            >>> file.getBlockShift();
+
+                    if (!isKey(cursorKey.getData(), expected))
+                        break;
+
+                    if ((file.flags & File.BLOCK_HEADER) != 0)
+                        ahead[found] = decode(cursorData.getData(),
+                                verify || directory.verifyBlock(), expected,
+                                file.getBlockSize(index + found));
+                    else
+                        ahead[found] = cursorData.getData();
+                    found++;
+                    status = cursor.getNext(cursorKey, cursorData,
+                            directory.cursorLockMode);
+                }
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
         } catch (DatabaseException e) {
             throw new IOException(e.getMessage());
         }
+
+        if (found > 0)
+            data.setData(ahead[0]);
+
+        return found;
+    }
+
+    /**
+     * Reads all the blocks of the file with a cursor scan, checking that none
+     * is missing and that every one of them decodes and matches its checksum.
+     * 
+     * @return whether all blocks are sound
+     */
+    protected boolean verify(JEDirectory directory) throws IOException {
+        long length = file.getLength();
+
+        if (length == 0L)
+            return true;
+
+        long count = file.getBlockCount(length);
+        byte[][] ahead = new byte[(int) Math.min(count, 64)][];
+
+        seek(0L);
+        while (count > 0) {
+            int n = (int) Math.min(count, ahead.length);
+
+            try {
+                if (get(directory, ahead, n, true) != n)
+                    return false;
+            } catch (IOException e) {
+                return false;
+            }
+
+            count -= n;
+            seek(file.getBlockPosition(index + n));
+        }
+
+        return true;
+    }
+
+    /**
+     * Limits the next {@link #put} to the first <code>used</code> bytes of
+     * this block, for the last block of a file. Reading a trimmed block
+     * returns a correspondingly shorter array.
+     */
+    protected void trim(int used) {
+        data.setSize(used);
     }
 
     protected void put(JEDirectory directory) throws IOException {
+        bind();
+
+        try {
+            Database blocks = file.getBlocks(directory);
+
+            if ((file.flags & File.BLOCK_HEADER) != 0)
+                blocks.put(file.getTransaction(directory), key, encode());
+            else
+                blocks.put(file.getTransaction(directory), key, data);
+        } catch (DatabaseException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            data.setSize(data.getData().length);
+        }
+
+        if (directory.blockCache != null)
+            directory.blockCache.remove(fileKey, number);
+    }
+
+    /**
+     * Reads this block's record as it is stored, without decoding it.
+     * 
+     * @return the record, or <code>null</code> if the block doesn't exist
+     */
+    protected byte[] getRecord(JEDirectory directory) throws IOException {
+        DatabaseEntry record = new DatabaseEntry();
+
+        bind();
+
+        try {
+            if (file.getBlocks(directory).get(file.getTransaction(directory), key, record,
+                    directory.lockMode) == OperationStatus.NOTFOUND)
+                return null;
+        } catch (DatabaseException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        return record.getData();
+    }
+
+    /**
+     * Stores a record read by {@link #getRecord} from a block of the same
+     * size and format as this one.
+     */
+    protected void putRecord(JEDirectory directory, byte[] record)
+            throws IOException {
+        bind();
+
         try {
-            directory.blocks.put(directory.txn, key, data);
+            file.getBlocks(directory).put(file.getTransaction(directory), key,
+                    new DatabaseEntry(record));
         } catch (DatabaseException e) {
             throw new IOException(e.getMessage());
         }
+
+        if (directory.blockCache != null)
+            directory.blockCache.remove(fileKey, number);
+    }
+
+    /**
+     * Deletes the blocks of the file with the given key, at most
+     * <code>max</code> of them, or all of them if <code>max</code> is not
+     * positive, with a single cursor positioned on the first one.
+     * 
+     * @return the number of blocks deleted
+     */
+    static protected int delete(Database blocks, Transaction txn,
+            byte[] fileKey, int max) throws DatabaseException {
+        DatabaseEntry cursorKey = new DatabaseEntry(fileKey.clone());
+        DatabaseEntry cursorData = new DatabaseEntry();
+        Cursor cursor = blocks.openCursor(txn, null);
+        int count = 0;
+
+        cursorData.setPartial(0, 0, true);
+
+        try {
+            OperationStatus status = cursor.getSearchKeyRange(cursorKey,
+                    cursorData, null);
+
+            while (status == OperationStatus.SUCCESS
+                    && (max <= 0 || count < max)
+                    && File.startsWith(cursorKey.getData(), fileKey)) {
+                cursor.delete();
+                count++;
+                status = cursor.getNext(cursorKey, cursorData, null);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return count;
     }
 }
@@ -0,0 +1,298 @@
+package org.apache.lucene.store.je;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, directory wide cache of file data blocks keyed by file key
+ * (file uuid or id) and block number. The cache is split into segments by
+ * the hash of the block key, each with its own lock, an equal share of the
+ * byte budget and least recently used eviction, so that concurrent readers
+ * only contend when they read blocks of the same segment. Each segment also
+ * indexes its blocks by file so that invalidating a file costs in
+ * proportion to the number of its cached blocks rather than to the size of
+ * the cache.
+ *
+ * Cached arrays are shared between all the {@link JEIndexInput} instances
+ * and clones reading them and must never be modified.
+ *
+ */
+
+public class BlockCache extends Object {
+
+    protected static class FileKey {
+        protected byte[] bytes;
+
+        protected int hash;
+
+        protected FileKey(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FileKey && Arrays.equals(bytes, ((FileKey) o).bytes);
+        }
+    }
+
+    protected static class Key {
+        protected FileKey file;
+
+        protected long number;
+
+        protected int hash;
+
+        protected Key(FileKey file, long number) {
+            this.file = file;
+            this.number = number;
+            this.hash = file.hash * 31 + (int) (number ^ (number >>> 32));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+
+            Key key = (Key) o;
+
+            return number == key.number && file.equals(key.file);
+        }
+    }
+
+    /**
+     * A least recently used share of the cache, guarded by its own monitor.
+     */
+    protected static class Segment {
+        protected LinkedHashMap<Key, byte[]> map = new LinkedHashMap<Key, byte[]>(
+                64, 0.75f, true);
+
+        /* the cached blocks of each file */
+        protected Map<FileKey, Set<Key>> files = new HashMap<FileKey, Set<Key>>();
+
+        protected long maxBytes, bytes;
+
+        protected Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        protected synchronized byte[] get(Key key) {
+            return map.get(key);
+        }
+
+        protected synchronized void put(Key key, byte[] data) {
+            if (data.length > maxBytes)
+                return;
+
+            byte[] old = map.put(key, data);
+
+            if (old != null)
+                bytes -= old.length;
+            else {
+                Set<Key> blocks = files.get(key.file);
+
+                if (blocks == null)
+                    files.put(key.file, blocks = new HashSet<Key>());
+                blocks.add(key);
+            }
+            bytes += data.length;
+
+            if (bytes > maxBytes) {
+                Iterator<Map.Entry<Key, byte[]>> iterator = map.entrySet().iterator();
+
+                while (bytes > maxBytes && iterator.hasNext()) {
+                    Map.Entry<Key, byte[]> entry = iterator.next();
+
+                    bytes -= entry.getValue().length;
+                    iterator.remove();
+                    unindex(entry.getKey());
+                }
+            }
+        }
+
+        protected synchronized void remove(Key key) {
+            byte[] old = map.remove(key);
+
+            if (old != null) {
+                bytes -= old.length;
+                unindex(key);
+            }
+        }
+
+        protected synchronized void invalidate(FileKey file) {
+            Set<Key> blocks = files.remove(file);
+
+            if (blocks != null)
+                for (Key key : blocks)
+                    bytes -= map.remove(key).length;
+        }
+
+        protected synchronized void clear() {
+            map.clear();
+            files.clear();
+            bytes = 0L;
+        }
+
+        protected synchronized long getBytes() {
+            return bytes;
+        }
+
+        protected void unindex(Key key) {
+            Set<Key> blocks = files.get(key.file);
+
+            if (blocks != null && blocks.remove(key) && blocks.isEmpty())
+                files.remove(key.file);
+        }
+    }
+
+    protected Segment[] segments;
+
+    protected long maxBytes;
+
+    protected AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * @param maxBytes
+     *            the maximum number of block bytes held by this cache.
+     */
+    public BlockCache(long maxBytes) {
+        this(maxBytes, 16);
+    }
+
+    /**
+     * @param maxBytes
+     *            the maximum number of block bytes held by this cache.
+     * @param segments
+     *            the number of separately locked segments sharing the
+     *            budget, rounded up to a power of two; a block larger than
+     *            a segment's share is never cached.
+     */
+    public BlockCache(long maxBytes, int segments) {
+        if (segments < 1)
+            throw new IllegalArgumentException("segments must be positive: " + segments);
+
+        int count = Integer.highestOneBit(segments);
+
+        if (count < segments)
+            count <<= 1;
+
+        this.maxBytes = maxBytes;
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++)
+            this.segments[i] = new Segment(maxBytes / count);
+    }
+
+    protected Segment getSegment(Key key) {
+        int hash = key.hash;
+
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+        return segments[hash & (segments.length - 1)];
+    }
+
+    /**
+     * Returns the cached data of block <code>number</code> of the file with
+     * the given key or <code>null</code>.
+     */
+    public byte[] get(byte[] fileKey, long number) {
+        Key key = new Key(new FileKey(fileKey), number);
+        byte[] data = getSegment(key).get(key);
+
+        if (data == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+
+        return data;
+    }
+
+    /**
+     * Caches the data of block <code>number</code> of the file with the
+     * given key. The file key is copied, the data array is kept as is.
+     */
+    public void put(byte[] fileKey, long number, byte[] data) {
+        Key key = new Key(new FileKey(fileKey.clone()), number);
+
+        getSegment(key).put(key, data);
+    }
+
+    /**
+     * Drops block <code>number</code> of the file with the given key from
+     * the cache.
+     */
+    public void remove(byte[] fileKey, long number) {
+        Key key = new Key(new FileKey(fileKey), number);
+
+        getSegment(key).remove(key);
+    }
+
+    /**
+     * Drops all the blocks of the file with the given key.
+     */
+    public void invalidate(byte[] fileKey) {
+        FileKey file = new FileKey(fileKey);
+
+        for (Segment segment : segments)
+            segment.invalidate(file);
+    }
+
+    public void clear() {
+        for (Segment segment : segments)
+            segment.clear();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getBytes() {
+        long bytes = 0L;
+
+        for (Segment segment : segments)
+            bytes += segment.getBytes();
+
+        return bytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
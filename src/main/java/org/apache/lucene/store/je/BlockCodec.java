@@ -0,0 +1,175 @@
+package org.apache.lucene.store.je;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A codec for the data blocks stored in the blocks database. Each block of a
+ * file written with codecs turned on starts with a small header recording the
+ * id of the codec that encoded it and the size of the decoded block, so that
+ * blocks are decoded without any knowledge of the codec configuration they
+ * were written with.
+ *
+ * Codecs are looked up by id when reading; custom codecs have to be
+ * registered with {@link #register} before blocks they wrote are read.
+ *
+ * @see JEDirectory#setBlockCodec
+ */
+
+public abstract class BlockCodec extends Object {
+
+    /* registered codecs by id, must be initialized before the codecs below */
+    static protected BlockCodec[] codecs = new BlockCodec[128];
+
+    /**
+     * Stores blocks as they are. Used for blocks no codec could make smaller.
+     */
+    static public final BlockCodec NONE = new BlockCodec(0) {
+        @Override
+        public int encode(byte[] src, int srcLen, byte[] dst, int dstOff) {
+            return -1;
+        }
+
+        @Override
+        public void decode(byte[] src, int srcOff, int srcLen, byte[] dst)
+                throws IOException {
+            System.arraycopy(src, srcOff, dst, 0, srcLen);
+        }
+    };
+
+    /**
+     * Compresses blocks with {@link Deflater}, favoring speed over ratio.
+     */
+    static public final BlockCodec DEFLATE = new BlockCodec(1) {
+        /* idle zlib streams; streams that don't fit are ended right away
+           rather than left to finalization */
+        protected BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(16);
+
+        protected BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<Inflater>(16);
+
+        @Override
+        public int encode(byte[] src, int srcLen, byte[] dst, int dstOff) {
+            Deflater deflater = deflaters.poll();
+
+            if (deflater == null)
+                deflater = new Deflater(Deflater.BEST_SPEED);
+
+            try {
+                deflater.setInput(src, 0, srcLen);
+                deflater.finish();
+
+                int len = deflater.deflate(dst, dstOff, dst.length - dstOff);
+
+                return deflater.finished() ? len : -1;
+            } finally {
+                deflater.reset();
+                if (!deflaters.offer(deflater))
+                    deflater.end();
+            }
+        }
+
+        @Override
+        public void decode(byte[] src, int srcOff, int srcLen, byte[] dst)
+                throws IOException {
+            Inflater inflater = inflaters.poll();
+
+            if (inflater == null)
+                inflater = new Inflater();
+
+            try {
+                inflater.setInput(src, srcOff, srcLen);
+
+                if (inflater.inflate(dst) != dst.length)
+                    throw new IOException("Truncated compressed block");
+            } catch (DataFormatException e) {
+                throw new IOException(e.getMessage());
+            } finally {
+                inflater.reset();
+                if (!inflaters.offer(inflater))
+                    inflater.end();
+            }
+        }
+    };
+
+    static {
+        register(NONE);
+        register(DEFLATE);
+    }
+
+    /**
+     * Makes a codec known for decoding under its id.
+     */
+    static public synchronized void register(BlockCodec codec) {
+        BlockCodec registered = codecs[codec.getId()];
+
+        if (registered != null && registered != codec)
+            throw new IllegalArgumentException("Block codec id already registered: " + codec.getId());
+
+        codecs[codec.getId()] = codec;
+    }
+
+    static protected BlockCodec forId(int id) throws IOException {
+        BlockCodec codec = id >= 0 && id < codecs.length ? codecs[id] : null;
+
+        if (codec == null)
+            throw new IOException("Unknown block codec: " + id);
+
+        return codec;
+    }
+
+    protected int id;
+
+    /**
+     * @param id
+     *            the id stored in the header of every block encoded with
+     *            this codec, from 0 to 127.
+     */
+    protected BlockCodec(int id) {
+        if (id < 0 || id >= codecs.length)
+            throw new IllegalArgumentException("Block codec id out of range: " + id);
+
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Encodes the first <code>srcLen</code> bytes of <code>src</code> into
+     * <code>dst</code> from <code>dstOff</code> on.
+     *
+     * @return the number of bytes written, or -1 if the encoded block doesn't
+     *         fit into <code>dst</code>, in which case the block is stored
+     *         as is.
+     */
+    public abstract int encode(byte[] src, int srcLen, byte[] dst, int dstOff);
+
+    /**
+     * Decodes <code>srcLen</code> bytes of <code>src</code> from
+     * <code>srcOff</code> on into all of <code>dst</code>.
+     */
+    public abstract void decode(byte[] src, int srcOff, int srcLen, byte[] dst)
+            throws IOException;
+}
@@ -0,0 +1,231 @@
+package org.apache.lucene.store.je;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.util.ThreadInterruptedException;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockConflictException;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
+
+/**
+ * Deletes the data blocks of deleted files in the background. Deleting a
+ * file only removes its file record and records the file's key in the
+ * pending database, in the deleting transaction. This thread then deletes
+ * the file's blocks in batches of bounded size, each in a transaction of its
+ * own, and drops the pending record with the last batch.
+ *
+ * Since the pending records are persistent, a reclaimer started on the same
+ * databases after a crash or a close picks up where the last one stopped.
+ *
+ * @see JEDirectory#setBlockReclaimer
+ */
+
+public class BlockReclaimer extends Thread {
+
+    protected JEDirectory directory;
+
+    protected Database pending;
+
+    protected int batchSize, blocksPerSecond;
+
+    protected long reclaimed;
+
+    protected volatile boolean closed;
+
+    protected boolean signalled;
+
+    /**
+     * @param directory
+     *            the directory whose blocks are reclaimed
+     * @param pending
+     *            a db handle to store the keys of deleted files whose blocks
+     *            haven't been reclaimed yet.
+     * @param batchSize
+     *            the maximum number of blocks deleted per transaction
+     * @param blocksPerSecond
+     *            the maximum number of blocks deleted per second, or 0 for
+     *            no limit
+     */
+    public BlockReclaimer(JEDirectory directory, Database pending,
+            int batchSize, int blocksPerSecond) {
+        super("JEDirectory reclaimer");
+
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+
+        this.directory = directory;
+        this.pending = pending;
+        this.batchSize = batchSize;
+        this.blocksPerSecond = blocksPerSecond;
+
+        setDaemon(true);
+    }
+
+    /**
+     * Records the file with the given block key prefix as deleted in
+     * <code>txn</code>. The record's data tells which blocks database holds
+     * the file's blocks: empty for the blocks database, a single 1 for the
+     * compact blocks database.
+     */
+    protected void enqueue(Transaction txn, byte[] fileKey, boolean compact)
+            throws DatabaseException {
+        pending.put(txn, new DatabaseEntry(fileKey),
+                new DatabaseEntry(compact ? new byte[] { 1 } : new byte[0]));
+
+        synchronized (this) {
+            signalled = true;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            boolean busy = false;
+
+            try {
+                busy = reclaim();
+            } catch (LockConflictException e) {
+                // the deleting transaction hasn't committed yet, retry later
+            } catch (DatabaseException e) {
+                if (!closed)
+                    System.err.println("WARNING: BlockReclaimer -- " + e.getMessage());
+            } catch (ThreadInterruptedException e) {
+                break;
+            }
+
+            if (!busy)
+                pause(1000L, true);
+        }
+    }
+
+    /**
+     * Reclaims the blocks of the first pending file.
+     *
+     * @return whether there was a pending file
+     */
+    protected boolean reclaim() throws DatabaseException {
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry data = new DatabaseEntry();
+        Cursor cursor = pending.openCursor(null, null);
+
+        Database blocks = null;
+
+        try {
+            /* files in a blocks database not configured stay pending */
+            OperationStatus status = cursor.getFirst(key, data, null);
+
+            while (blocks == null) {
+                if (status != OperationStatus.SUCCESS)
+                    return false;
+
+                blocks = data.getSize() > 0 && data.getData()[0] == 1
+                        ? directory.compactBlocks : directory.blocks;
+                if (blocks == null)
+                    status = cursor.getNext(key, data, null);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Environment env = pending.getEnvironment();
+
+        boolean transactional = env.getConfig().getTransactional();
+        int count;
+
+        do {
+            Transaction txn = transactional ? env.beginTransaction(null, null) : null;
+
+            try {
+                count = Block.delete(blocks, txn, key.getData(), batchSize);
+                if (count < batchSize)
+                    pending.delete(txn, key);
+
+                if (txn != null)
+                    txn.commit();
+                txn = null;
+            } finally {
+                if (txn != null)
+                    txn.abort();
+            }
+
+            synchronized (this) {
+                reclaimed += count;
+            }
+
+            if (blocksPerSecond > 0 && count > 0)
+                pause(count * 1000L / blocksPerSecond, false);
+        } while (count == batchSize && !closed);
+
+        return true;
+    }
+
+    /**
+     * Waits for <code>millis</code> milliseconds, or less if this reclaimer
+     * is closed or, when <code>signal</code> is set, a file is deleted in the
+     * meantime.
+     */
+    protected synchronized void pause(long millis, boolean signal) {
+        long until = System.currentTimeMillis() + millis;
+
+        try {
+            while (!closed && !(signal && signalled) && millis > 0) {
+                wait(millis);
+                millis = until - System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            throw new ThreadInterruptedException(e);
+        }
+
+        if (signal)
+            signalled = false;
+    }
+
+    /**
+     * Returns the number of blocks deleted so far.
+     */
+    public synchronized long getReclaimed() {
+        return reclaimed;
+    }
+
+    /**
+     * Stops this reclaimer, waiting for the batch in progress to complete.
+     * Files not completely reclaimed stay pending.
+     */
+    public void close() {
+        closed = true;
+
+        synchronized (this) {
+            notifyAll();
+        }
+
+        if (Thread.currentThread() != this && isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                throw new ThreadInterruptedException(e);
+            }
+        }
+    }
+}
@@ -17,17 +17,16 @@ package org.apache.lucene.store.je;
  * limitations under the License.
  */
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UTFDataFormatException;
 import java.util.Random;
 
 import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.Transaction;
 
@@ -40,6 +39,36 @@ public class File extends Object {
 
     static protected Random random = new Random();
 
+    /**
+     * The size of the original file record: length, time modified and uuid.
+     * Records of files using any other than the default block size carry two
+     * more bytes, the block shift and a flags byte. These may be followed by
+     * the file's extent table and by its data when it is inline.
+     */
+    static protected final int RECORD_LEN = 32;
+
+    static protected final int EXTENDED_RECORD_LEN = RECORD_LEN + 2;
+
+    /* flags: the file's blocks start with a codec header, followed by a
+       CRC32 or CRC32C checksum */
+    static protected final int BLOCK_HEADER = 0x01;
+
+    static protected final int BLOCK_CHECKSUM = 0x02;
+
+    static protected final int BLOCK_CRC32C = 0x04;
+
+    /* flag: the file's blocks are stored in the compact blocks database,
+       keyed by the file's sequence id and block number, see getBlockKey */
+    static protected final int BLOCK_COMPACT = 0x08;
+
+    /* flag: the file has no blocks, its data follows the extended record */
+    static protected final int INLINE = 0x10;
+
+    /* flag: the file's blocks grow in size, the extent table follows the
+       extended record: a tier count, then a 4 byte count and a shift byte
+       per tier */
+    static protected final int EXTENTS = 0x20;
+
     protected DatabaseEntry key, data;
 
     protected long length, timeModified;
@@ -48,44 +77,146 @@ public class File extends Object {
 
     protected byte[] uuid;
 
+    /* the transaction this file is written in, when it has one of its own */
+    protected Transaction txn;
+
+    /* the prefix of the keys of this file's blocks */
+    protected byte[] blockKey;
+
+    protected int blockShift = JEIndexOutput.BLOCK_SHIFT, flags;
+
+    /* the codec blocks are written with, when creating the file */
+    protected BlockCodec codec;
+
+    /* the data of an inline file, from inlineOffset on */
+    protected byte[] inline;
+
+    protected int inlineOffset;
+
+    /* extents: extentCounts[0] blocks of 2^blockShift bytes, then
+       extentCounts[i] blocks of 2^extentShifts[i - 1] bytes, then blocks of
+       the last extent size only */
+    protected int[] extentCounts, extentShifts;
+
     protected File(String name) throws IOException {
         setName(name);
 
-        data = new DatabaseEntry(new byte[32]);
+        data = new DatabaseEntry();
     }
 
     protected File(JEDirectory directory, String name, boolean create)
             throws IOException {
+        this(directory, name, create, null);
+    }
+
+    /**
+     * @param txn
+     *            the transaction all database operations on this file run in,
+     *            or <code>null</code> for the directory's transaction of the
+     *            calling thread.
+     */
+    protected File(JEDirectory directory, String name, boolean create,
+            Transaction txn) throws IOException {
         this(name);
 
+        this.txn = txn;
+
         if (!exists(directory)) {
             if (!create)
                 throw new IOException("File does not exist: " + name);
             else {
-                DatabaseEntry key = new DatabaseEntry(new byte[24]);
-                DatabaseEntry data = new DatabaseEntry(null);
-                Database blocks = directory.blocks;
-                Transaction txn = directory.txn;
+                setFormat(directory);
 
-                data.setPartial(true);
+                /* files that may end up inline get an id once they need one */
+                if (directory.inlineLimit < 0)
+                    allocate(directory);
+            }
+        } else if (create) {
+            /*
+             * the old blocks don't necessarily line up with the new format,
+             * nor are they all overwritten: drop them and start over under
+             * a new id, recording it right away so that the file record
+             * never refers to the dropped blocks
+             */
+            try {
+                deleteBlocks(directory, getTransaction(directory));
+            } catch (DatabaseException e) {
+                throw new IOException(e.getMessage());
+            }
 
-                uuid = new byte[16];
+            uuid = null;
+            blockKey = null;
+            flags &= ~BLOCK_COMPACT;
+            setFormat(directory);
+            if (directory.inlineLimit < 0)
+                allocate(directory);
+            modify(directory, 0L, System.currentTimeMillis());
+        }
+    }
 
-                try {
-                    do {
-                        /* generate a v.4 random-uuid unique to this db */
-                        random.nextBytes(uuid);
-                        uuid[6] = (byte) ((byte) 0x40 | (uuid[6] & (byte) 0x0f));
-                        uuid[8] = (byte) ((byte) 0x80 | (uuid[8] & (byte) 0x3f));
-                        System.arraycopy(uuid, 0, key.getData(), 0, 16);
-                        // TODO check LockMode
-                    } while (blocks.get(txn, key, data, null) != OperationStatus.NOTFOUND);
-                } catch (DatabaseException e) {
-                    throw new IOException(e.getMessage());
-                }
+    /**
+     * Gives this file the id its blocks are keyed with.
+     */
+    protected void allocate(JEDirectory directory) throws IOException {
+        DatabaseEntry key = new DatabaseEntry(new byte[24]);
+        DatabaseEntry data = new DatabaseEntry(null);
+        Database blocks = directory.blocks;
+        Transaction txn = getTransaction(directory);
+
+        data.setPartial(true);
+
+        uuid = new byte[16];
+        blockKey = null;
+
+        try {
+            if (directory.fileIds != null) {
+                /*
+                 * ids are never handed out twice, no probing needed;
+                 * the all-ones prefix keeps the blocks of new files
+                 * at the right edge of the blocks btree
+                 */
+                for (int i = 0; i < 8; i++)
+                    uuid[i] = (byte) 0xff;
+                putLong(uuid, 8, directory.fileIds.get(null, 1));
+                if (directory.compactKeys && directory.compactBlocks != null)
+                    flags |= BLOCK_COMPACT;
+            } else {
+                do {
+                    /* generate a v.4 random-uuid unique to this db */
+                    random.nextBytes(uuid);
+                    uuid[6] = (byte) ((byte) 0x40 | (uuid[6] & (byte) 0x0f));
+                    uuid[8] = (byte) ((byte) 0x80 | (uuid[8] & (byte) 0x3f));
+                    System.arraycopy(uuid, 0, key.getData(), 0, 16);
+                } while (blocks.get(txn, key, data, directory.lockMode) != OperationStatus.NOTFOUND);
             }
-        } else if (create)
-            length = 0L;
+        } catch (DatabaseException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Sets up the block format of a file being created from the directory's
+     * settings.
+     */
+    private void setFormat(JEDirectory directory) {
+        blockShift = directory.blockShift;
+        codec = directory.getBlockCodec(name);
+        flags &= ~(BLOCK_HEADER | BLOCK_CHECKSUM | BLOCK_CRC32C | INLINE | EXTENTS);
+        inline = null;
+        extentCounts = directory.extentCounts;
+        extentShifts = directory.extentShifts;
+        if (extentCounts != null)
+            flags |= EXTENTS;
+
+        if (directory.checksums)
+            flags |= BLOCK_HEADER | BLOCK_CHECKSUM
+                    | (Block.hasCRC32C() ? BLOCK_CRC32C : 0);
+        else if (codec != null)
+            flags |= BLOCK_HEADER;
+    }
+
+    protected Transaction getTransaction(JEDirectory directory) {
+        return txn != null ? txn : directory.getTransaction();
     }
 
     protected String getName() {
@@ -93,14 +224,93 @@ public class File extends Object {
     }
 
     private void setName(String name) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
-        DataOutputStream out = new DataOutputStream(buffer);
+        key = new DatabaseEntry(encodeName(name));
+        this.name = name;
+    }
 
-        out.writeUTF(name);
-        out.close();
+    /**
+     * Encodes a file name into its record key, the same bytes as
+     * {@link java.io.DataOutput#writeUTF} would write, without any stream or
+     * intermediate buffer.
+     */
+    static protected byte[] encodeName(String name) throws IOException {
+        int count = name.length(), utflen = 0;
+
+        for (int i = 0; i < count; i++) {
+            char c = name.charAt(i);
+
+            if (c >= 0x0001 && c <= 0x007f)
+                utflen += 1;
+            else if (c > 0x07ff)
+                utflen += 3;
+            else
+                utflen += 2;
+        }
 
-        key = new DatabaseEntry(buffer.toByteArray());
-        this.name = name;
+        if (utflen > 65535)
+            throw new UTFDataFormatException("File name too long: " + utflen
+                    + " bytes");
+
+        byte[] bytes = new byte[utflen + 2];
+        int pos = 0;
+
+        bytes[pos++] = (byte) (utflen >>> 8);
+        bytes[pos++] = (byte) utflen;
+
+        for (int i = 0; i < count; i++) {
+            char c = name.charAt(i);
+
+            if (c >= 0x0001 && c <= 0x007f)
+                bytes[pos++] = (byte) c;
+            else if (c > 0x07ff) {
+                bytes[pos++] = (byte) (0xe0 | ((c >> 12) & 0x0f));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                bytes[pos++] = (byte) (0xc0 | ((c >> 6) & 0x1f));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Decodes a file name from its record key, the inverse of
+     * {@link #encodeName}.
+     * 
+     * @param chars
+     *            a scratch buffer, used when large enough
+     */
+    static protected String decodeName(byte[] bytes, char[] chars)
+            throws IOException {
+        int utflen = ((bytes[0] & 0xff) << 8) | (bytes[1] & 0xff);
+        int pos = 2, end = utflen + 2, count = 0;
+
+        if (end > bytes.length)
+            throw new UTFDataFormatException("Truncated file name");
+        if (chars == null || chars.length < utflen)
+            chars = new char[utflen];
+
+        while (pos < end) {
+            int c = bytes[pos] & 0xff;
+
+            if (c < 0x80) {
+                chars[count++] = (char) c;
+                pos += 1;
+            } else if ((c & 0xe0) == 0xc0 && pos + 1 < end) {
+                chars[count++] = (char) (((c & 0x1f) << 6) | (bytes[pos + 1] & 0x3f));
+                pos += 2;
+            } else if ((c & 0xf0) == 0xe0 && pos + 2 < end) {
+                chars[count++] = (char) (((c & 0x0f) << 12)
+                        | ((bytes[pos + 1] & 0x3f) << 6) | (bytes[pos + 2] & 0x3f));
+                pos += 3;
+            } else
+                throw new UTFDataFormatException("Malformed file name at byte "
+                        + pos);
+        }
+
+        return new String(chars, 0, count);
     }
 
     protected byte[] getKey() throws IOException {
@@ -110,6 +320,72 @@ public class File extends Object {
         return uuid;
     }
 
+    /**
+     * Returns the prefix of the keys of this file's blocks: its uuid, or for
+     * files with compact block keys its sequence id as a length prefixed
+     * varint, see {@link #putVarLong}.
+     */
+    protected byte[] getBlockKey() throws IOException {
+        if (blockKey == null) {
+            byte[] uuid = getKey();
+
+            if ((flags & BLOCK_COMPACT) != 0) {
+                long id = getLong(uuid, 8);
+
+                blockKey = new byte[1 + varLength(id)];
+                putVarLong(blockKey, 0, id);
+            } else
+                blockKey = uuid;
+        }
+
+        return blockKey;
+    }
+
+    /**
+     * Returns the database holding this file's blocks.
+     */
+    protected Database getBlocks(JEDirectory directory) throws IOException {
+        if ((flags & BLOCK_COMPACT) == 0)
+            return directory.blocks;
+        if (directory.compactBlocks == null)
+            throw new IOException(name + ": no compact blocks database");
+
+        return directory.compactBlocks;
+    }
+
+    protected boolean hasKey() {
+        return uuid != null;
+    }
+
+    protected boolean isInline() {
+        return (flags & INLINE) != 0;
+    }
+
+    /**
+     * Makes the first <code>len</code> bytes of <code>bytes</code> this
+     * file's data, to be stored in its record by the next {@link #modify}.
+     */
+    protected void setInline(byte[] bytes, int len) {
+        inline = new byte[len];
+        inlineOffset = 0;
+        System.arraycopy(bytes, 0, inline, 0, len);
+        flags |= INLINE;
+    }
+
+    /**
+     * Returns a copy of the data of an inline file.
+     */
+    protected byte[] getInlineData() {
+        byte[] bytes = new byte[(int) length];
+
+        System.arraycopy(inline, inlineOffset, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    protected boolean isCompact() {
+        return (flags & BLOCK_COMPACT) != 0;
+    }
+
     protected long getLength() {
         return length;
     }
@@ -118,44 +394,258 @@ public class File extends Object {
         return timeModified;
     }
 
+    /**
+     * The size of this file's data blocks is <code>2^blockShift</code>.
+     */
+    protected int getBlockShift() {
+        return blockShift;
+    }
+
+    /**
+     * Returns the number of blocks before the block holding
+     * <code>position</code>.
+     */
+    protected long getBlockIndex(long position) {
+        if (extentCounts == null)
+            return position >>> blockShift;
+
+        long tierStart = 0L, index = 0L;
+
+        for (int i = 0;; i++) {
+            int shift = i == 0 ? blockShift : extentShifts[i - 1];
+
+            if (i == extentCounts.length
+                    || position < tierStart + ((long) extentCounts[i] << shift))
+                return index + ((position - tierStart) >>> shift);
+
+            tierStart += (long) extentCounts[i] << shift;
+            index += extentCounts[i];
+        }
+    }
+
+    /**
+     * Returns the position of the first byte of the block with the given
+     * index.
+     */
+    protected long getBlockPosition(long index) {
+        if (extentCounts == null)
+            return index << blockShift;
+
+        long tierStart = 0L;
+
+        for (int i = 0;; i++) {
+            int shift = i == 0 ? blockShift : extentShifts[i - 1];
+
+            if (i == extentCounts.length || index < extentCounts[i])
+                return tierStart + (index << shift);
+
+            tierStart += (long) extentCounts[i] << shift;
+            index -= extentCounts[i];
+        }
+    }
+
+    /**
+     * Returns the size of the block with the given index.
+     */
+    protected int getBlockSize(long index) {
+        if (extentCounts != null) {
+            for (int i = 0; i < extentCounts.length; i++) {
+                if (index < extentCounts[i])
+                    return 1 << (i == 0 ? blockShift : extentShifts[i - 1]);
+                index -= extentCounts[i];
+            }
+
+            return 1 << extentShifts[extentShifts.length - 1];
+        }
+
+        return 1 << blockShift;
+    }
+
+    /**
+     * Returns the number of blocks a file of <code>length</code> bytes has.
+     */
+    protected long getBlockCount(long length) {
+        return length == 0L ? 0L : getBlockIndex(length - 1) + 1;
+    }
+
+    /**
+     * Decodes the big-endian long at <code>offset</code> of a file record.
+     */
+    static protected long getLong(byte[] bytes, int offset) {
+        long value = 0L;
+
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (bytes[offset + i] & 0xffL);
+
+        return value;
+    }
+
+    /**
+     * Encodes <code>value</code> big-endian at <code>offset</code> of a file
+     * record.
+     */
+    static protected void putLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Returns the number of significant bytes of a non-negative
+     * <code>value</code>.
+     */
+    static protected int varLength(long value) {
+        int len = 0;
+
+        while (value != 0L) {
+            len++;
+            value >>>= 8;
+        }
+
+        return len;
+    }
+
+    /**
+     * Encodes a non-negative <code>value</code> at <code>offset</code> as its
+     * number of significant bytes followed by these bytes in big-endian
+     * order. The encoding sorts like the values and no encoding is a prefix
+     * of another one.
+     * 
+     * @return the offset following the encoded value
+     */
+    static protected int putVarLong(byte[] bytes, int offset, long value) {
+        int len = varLength(value);
+
+        bytes[offset] = (byte) len;
+        for (int i = len; i > 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+
+        return offset + 1 + len;
+    }
+
+    static protected long getVarLong(byte[] bytes, int offset) {
+        int len = bytes[offset];
+        long value = 0L;
+
+        for (int i = 1; i <= len; i++)
+            value = (value << 8) | (bytes[offset + i] & 0xffL);
+
+        return value;
+    }
+
     protected boolean exists(JEDirectory directory) throws IOException {
         Database files = directory.files;
-        Transaction txn = directory.txn;
-        try {
-            // TODO check LockMode
-            if (files.get(txn, key, data, null) == OperationStatus.NOTFOUND)
-                return false;
-        } catch (DatabaseException e) {
-            throw new IOException(e.getMessage());
+        Transaction txn = getTransaction(directory);
+        byte[] bytes = directory.getCachedFile(name, txn);
+
+        if (bytes != null)
+            data.setData(bytes);
+        else {
+            long version = directory.fileCacheVersion.get();
+
+            try {
+                if (files.get(txn, key, data, directory.lockMode) == OperationStatus.NOTFOUND)
+                    return false;
+            } catch (DatabaseException e) {
+                throw new IOException(e.getMessage());
+            }
+
+            /* dirty reads may return records that are later rolled back */
+            bytes = data.getData();
+            if (directory.lockMode != LockMode.READ_UNCOMMITTED)
+                directory.cacheFile(name, bytes, txn, version);
         }
 
-        byte[] bytes = data.getData();
-        ByteArrayInputStream buffer = new ByteArrayInputStream(bytes);
-        DataInputStream in = new DataInputStream(buffer);
+        length = getLong(bytes, 0);
+        timeModified = getLong(bytes, 8);
 
-        length = in.readLong();
-        timeModified = in.readLong();
-        in.close();
+        uuid = null;
+        blockKey = null;
+        for (int i = 16; i < 32; i++) {
+            /* an all zero uuid stands for none allocated yet */
+            if (bytes[i] != 0) {
+                uuid = new byte[16];
+                System.arraycopy(bytes, 16, uuid, 0, 16);
+                break;
+            }
+        }
 
-        uuid = new byte[16];
-        System.arraycopy(bytes, 16, uuid, 0, 16);
+        if (bytes.length >= EXTENDED_RECORD_LEN) {
+            blockShift = bytes[RECORD_LEN];
+            flags = bytes[RECORD_LEN + 1] & 0xff;
+        } else {
+            blockShift = JEIndexOutput.BLOCK_SHIFT;
+            flags = 0;
+        }
+
+        int offset = EXTENDED_RECORD_LEN;
+
+        if ((flags & EXTENTS) != 0) {
+            int tiers = bytes[offset++];
+
+            extentCounts = new int[tiers];
+            extentShifts = new int[tiers];
+            for (int i = 0; i < tiers; i++, offset += 5) {
+                for (int j = 0; j < 4; j++)
+                    extentCounts[i] = (extentCounts[i] << 8) | (bytes[offset + j] & 0xff);
+                extentShifts[i] = bytes[offset + 4];
+            }
+        } else {
+            extentCounts = null;
+            extentShifts = null;
+        }
+
+        if ((flags & INLINE) != 0) {
+            inline = bytes;
+            inlineOffset = offset;
+        } else
+            inline = null;
 
         return true;
     }
 
+    /**
+     * Builds a new file record for this file.
+     */
+    protected byte[] encode(long length, long timeModified) throws IOException {
+        boolean extended = blockShift != JEIndexOutput.BLOCK_SHIFT || flags != 0;
+        int inlineLen = (flags & INLINE) != 0 ? (int) length : 0;
+        int tiers = (flags & EXTENTS) != 0 ? extentCounts.length : 0;
+        int offset = extended ? EXTENDED_RECORD_LEN : RECORD_LEN;
+        byte[] bytes = new byte[offset + (tiers > 0 ? 1 + 5 * tiers : 0) + inlineLen];
+
+        putLong(bytes, 0, length);
+        putLong(bytes, 8, timeModified);
+        if (uuid != null)
+            System.arraycopy(uuid, 0, bytes, 16, 16);
+        if (extended) {
+            bytes[RECORD_LEN] = (byte) blockShift;
+            bytes[RECORD_LEN + 1] = (byte) flags;
+        }
+        if (tiers > 0) {
+            bytes[offset++] = (byte) tiers;
+            for (int i = 0; i < tiers; i++, offset += 5) {
+                for (int j = 0; j < 4; j++)
+                    bytes[offset + j] = (byte) (extentCounts[i] >>> (24 - 8 * j));
+                bytes[offset + 4] = (byte) extentShifts[i];
+            }
+        }
+        if (inlineLen > 0)
+            System.arraycopy(inline, inlineOffset, bytes, offset, inlineLen);
+
+        return bytes;
+    }
+
     protected void modify(JEDirectory directory, long length, long timeModified)
             throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream(32);
-        DataOutputStream out = new DataOutputStream(buffer);
         Database files = directory.files;
-        Transaction txn = directory.txn;
-
-        out.writeLong(length);
-        out.writeLong(timeModified);
-        out.write(getKey());
-        out.close();
+        Transaction txn = getTransaction(directory);
 
-        System.arraycopy(buffer.toByteArray(), 0, data.getData(), 0, 32);
+        /* never write into data, it may be shared with the file cache */
+        data.setData(encode(length, timeModified));
 
         try {
             files.put(txn, key, data);
@@ -163,6 +653,8 @@ public class File extends Object {
             throw new IOException(e.getMessage());
         }
 
+        directory.updateFile(name, data.getData(), txn);
+
         this.length = length;
         this.timeModified = timeModified;
     }
@@ -171,48 +663,39 @@ public class File extends Object {
         if (!exists(directory))
             throw new IOException("File does not exist: " + getName());
 
-        Cursor cursor = null;
-
         try {
-            try {
-                byte[] bytes = getKey();
-                int ulen = bytes.length + 8;
-                byte[] cursorBytes = new byte[ulen];
-                DatabaseEntry cursorKey = new DatabaseEntry(cursorBytes);
-                DatabaseEntry cursorData = new DatabaseEntry(null);
-                Database files = directory.files;
-                Database blocks = directory.blocks;
-                Transaction txn = directory.txn;
-
-                System.arraycopy(bytes, 0, cursorBytes, 0, bytes.length);
-
-                cursorData.setPartial(true);
-
-                cursor = blocks.openCursor(txn, null);
-
-                if (cursor.getSearchKey(cursorKey, cursorData, null) != OperationStatus.NOTFOUND) {
-                    cursor.delete();
-                    advance: while (cursor.getNext(cursorKey, cursorData, null) != OperationStatus.NOTFOUND) {
-                        byte[] temp = cursorKey.getData();
-                        for (int i = 0; i < bytes.length; i++)
-                            if (bytes[i] != temp[i]) {
-                                break advance;
-                            }
-                        cursor.delete();
-                    }
-                }
+            Transaction txn = getTransaction(directory);
 
-                files.delete(txn, key);
-            } finally {
-                if (cursor != null)
-                    cursor.close();
-            }
+            deleteBlocks(directory, txn);
+            directory.files.delete(txn, key);
+            directory.updateFile(name, null, txn);
         } catch (DatabaseException e) {
             throw new IOException(e.getMessage());
         }
 
     }
 
+    /**
+     * Deletes the blocks of this file in <code>txn</code>. With a reclaimer,
+     * they are deleted in the background once <code>txn</code> has
+     * committed. Files without an id never had any blocks.
+     */
+    protected void deleteBlocks(JEDirectory directory, Transaction txn)
+            throws DatabaseException, IOException {
+        if (uuid == null)
+            return;
+
+        byte[] bytes = getBlockKey();
+
+        if (directory.reclaimer != null)
+            directory.reclaimer.enqueue(txn, bytes, isCompact());
+        else
+            Block.delete(getBlocks(directory), txn, bytes, 0);
+
+        if (directory.blockCache != null)
+            directory.blockCache.invalidate(bytes);
+    }
+
     protected void rename(JEDirectory directory, String name)
             throws IOException {
         if (!exists(directory))
@@ -225,13 +708,134 @@ public class File extends Object {
 
         try {
             Database files = directory.files;
-            Transaction txn = directory.txn;
+            Transaction txn = getTransaction(directory);
 
             files.delete(txn, key);
+            directory.updateFile(getName(), null, txn);
+
             setName(name);
             files.put(txn, key, data);
+            directory.updateFile(name, data.getData(), txn);
+        } catch (DatabaseException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Moves the blocks of this file to the compact blocks database under a
+     * new sequence id, copying and then deleting at most
+     * <code>batchSize</code> blocks per transaction. The file record is
+     * switched over in a transaction of its own once all the blocks have
+     * been copied. Meant for offline use, the file must not be open.
+     */
+    protected void compact(JEDirectory directory, int batchSize)
+            throws IOException {
+        byte[] oldKey = getBlockKey();
+        Database oldBlocks = getBlocks(directory);
+        Environment env = oldBlocks.getEnvironment();
+
+        try {
+            boolean transactional = env.getConfig().getTransactional();
+            byte[] newUuid = new byte[16];
+
+            for (int i = 0; i < 8; i++)
+                newUuid[i] = (byte) 0xff;
+            putLong(newUuid, 8, directory.fileIds.get(null, 1));
+
+            long id = getLong(newUuid, 8);
+            byte[] newKey = new byte[1 + varLength(id) + 9];
+            int prefix = putVarLong(newKey, 0, id);
+            DatabaseEntry cursorKey = new DatabaseEntry(oldKey.clone());
+            DatabaseEntry cursorData = new DatabaseEntry();
+            DatabaseEntry blockKey = new DatabaseEntry(newKey);
+            boolean more = true;
+
+            while (more) {
+                Transaction txn = transactional ? env.beginTransaction(null, null) : null;
+                Cursor cursor = null;
+
+                try {
+                    cursor = oldBlocks.openCursor(txn, null);
+
+                    OperationStatus status = cursor.getSearchKeyRange(cursorKey, cursorData, null);
+                    int count = 0;
+
+                    more = false;
+                    while (status == OperationStatus.SUCCESS
+                            && startsWith(cursorKey.getData(), oldKey)) {
+                        if (count++ == batchSize) {
+                            more = true;
+                            break;
+                        }
+
+                        long number = getLong(cursorKey.getData(), oldKey.length);
+
+                        blockKey.setSize(putVarLong(newKey, prefix, number));
+                        directory.compactBlocks.put(txn, blockKey, cursorData);
+                        status = cursor.getNext(cursorKey, cursorData, null);
+                    }
+
+                    cursor.close();
+                    cursor = null;
+                    if (txn != null)
+                        txn.commit();
+                    txn = null;
+                } finally {
+                    if (cursor != null)
+                        cursor.close();
+                    if (txn != null)
+                        txn.abort();
+                }
+            }
+
+            int oldFlags = flags;
+            byte[] oldUuid = uuid;
+
+            uuid = newUuid;
+            flags |= BLOCK_COMPACT;
+            blockKey = null;
+
+            try {
+                directory.files.put(null, key,
+                        new DatabaseEntry(encode(length, timeModified)));
+            } catch (DatabaseException e) {
+                uuid = oldUuid;
+                flags = oldFlags;
+                blockKey = null;
+                throw e;
+            }
+
+            directory.updateFile(name, null, null);
+            if (directory.blockCache != null)
+                directory.blockCache.invalidate(oldKey);
+
+            int count;
+
+            do {
+                Transaction txn = transactional ? env.beginTransaction(null, null) : null;
+
+                try {
+                    count = Block.delete(oldBlocks, txn, oldKey, batchSize);
+                    if (txn != null)
+                        txn.commit();
+                    txn = null;
+                } finally {
+                    if (txn != null)
+                        txn.abort();
+                }
+            } while (count == batchSize);
         } catch (DatabaseException e) {
             throw new IOException(e.getMessage());
         }
     }
+
+    static protected boolean startsWith(byte[] bytes, byte[] prefix) {
+        if (bytes.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (bytes[i] != prefix[i])
+                return false;
+
+        return true;
+    }
 }
@@ -17,27 +17,42 @@ package org.apache.lucene.store.je;
  * limitations under the License.
  */
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.Lock;
+import org.apache.lucene.util.ThreadInterruptedException;
 
 import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Durability;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Sequence;
 import com.sleepycat.je.Transaction;
 
 /**
@@ -52,14 +67,117 @@ import com.sleepycat.je.Transaction;
 
 public class JEDirectory extends Directory {
 
+    /**
+     * Block checksum verification modes, see {@link #setVerifyMode}.
+     */
+    static public final int VERIFY_OFF = 0, VERIFY_SAMPLED = 1,
+            VERIFY_ALWAYS = 2;
+
+    /* the key of the record syncLog commits: no lock is named after it and
+       it is too short to start with the key of any file's blocks */
+    static protected final byte[] SYNC_KEY = { 0 };
+
     protected Set<JEIndexOutput> openFiles = Collections.synchronizedSet(new HashSet<JEIndexOutput>());
 
     protected Database files, blocks;
 
     protected Transaction txn;
 
+    /* transactions of individual threads, in place of txn */
+    protected ThreadLocal<Transaction> threadTxn = new ThreadLocal<Transaction>();
+
     protected int flags;
 
+    protected BlockCache blockCache;
+
+    protected int readAhead;
+
+    protected int blockShift = JEIndexOutput.BLOCK_SHIFT;
+
+    /* the extent tiers of files created from now on, see setExtents */
+    protected int[] extentCounts, extentShifts;
+
+    protected int smallFileLimit = -1;
+
+    protected int inlineLimit = -1;
+
+    protected int writeBehind;
+
+    /* the write-behind threads and their bound on outstanding batches */
+    protected ExecutorService writer;
+
+    protected Semaphore writeQueue;
+
+    protected int writeBehindThreads;
+
+    /* the number of threads sync flushes open outputs with, and the pool
+       running them, started on the first parallel sync */
+    protected int syncThreads = 4;
+
+    protected ExecutorService syncPool;
+
+    protected LockMode lockMode;
+
+    /* cursors take READ_COMMITTED from their config, not as a lock mode */
+    protected LockMode cursorLockMode;
+
+    protected CursorConfig cursorConfig;
+
+    protected boolean checksums;
+
+    protected int verifyMode = VERIFY_OFF, verifyInterval;
+
+    protected AtomicLong verifyCount = new AtomicLong();
+
+    /* block codecs by file name extension */
+    protected Map<String, BlockCodec> codecs = new ConcurrentHashMap<String, BlockCodec>();
+
+    /* allocates the ids of new files, random uuids are used if not set */
+    protected Sequence fileIds;
+
+    /* holds the blocks of files with compact block keys */
+    protected Database compactBlocks;
+
+    protected boolean compactKeys;
+
+    /* deletes the blocks of deleted files in the background, if set */
+    protected BlockReclaimer reclaimer;
+
+    /* holds the records of locks, which are in-memory flags if not set */
+    protected Database locks;
+
+    protected long lockLease = 10000L, lockPollInterval = 100L;
+
+    protected String lockOwner = ManagementFactory.getRuntimeMXBean().getName();
+
+    /* the locks made from this directory and currently held */
+    protected Set<JELock> heldLocks = Collections.synchronizedSet(new HashSet<JELock>());
+
+    /* file records by file name, when file metadata caching is on */
+    protected Map<String, CachedFile> fileCache;
+
+    /* bumped under fileCacheLock by every change to the file cache, so that
+       a record read before a change isn't cached after it, see cacheFile */
+    protected AtomicLong fileCacheVersion = new AtomicLong();
+
+    protected Object fileCacheLock = new Object();
+
+    /**
+     * A cached file record and the transaction it was read or written in,
+     * <code>null</code> outside of one. Until that transaction commits its
+     * records may be rolled back, so other transactions don't see them.
+     */
+    protected static class CachedFile {
+        protected final byte[] bytes;
+
+        protected final Transaction txn;
+
+        protected CachedFile(byte[] bytes, Transaction txn) {
+            this.bytes = bytes;
+            this.txn = txn;
+        }
+    }
+
     /**
      * Instantiate a DbDirectory. The same threading rules that apply to
      * Berkeley DB handles apply to instances of DbDirectory.
@@ -93,6 +211,52 @@ public class JEDirectory extends Directory {
     @Override
     public void close() throws IOException {
         flush();
+        if (writer != null)
+            writer.shutdown();
+        stopSync();
+        if (reclaimer != null)
+            reclaimer.close();
+        stopLocks();
+    }
+
+    /**
+     * Shuts the threads flushing outputs for {@link #sync} down.
+     */
+    protected synchronized void stopSync() {
+        if (syncPool != null) {
+            syncPool.shutdown();
+            syncPool = null;
+        }
+    }
+
+    protected synchronized ExecutorService getSyncPool() {
+        if (syncPool == null) {
+            syncPool = Executors.newFixedThreadPool(syncThreads, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "JEDirectory sync");
+
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return syncPool;
+    }
+
+    /**
+     * Stops renewing the leases of the locks still held, which then expire
+     * as if their owner had died.
+     */
+    protected void stopLocks() {
+        List<JELock> held;
+
+        synchronized (heldLocks) {
+            held = new ArrayList<JELock>(heldLocks);
+        }
+
+        for (JELock lock : held)
+            lock.stop();
     }
 
     /**
@@ -103,13 +267,152 @@ public class JEDirectory extends Directory {
      * @see #setTransaction
      */
     public void flush() throws IOException {
-        Iterator<JEIndexOutput> iterator = openFiles.iterator();
+        for (JEIndexOutput output : getOpenOutputs(null))
+            output.flush();
+    }
 
-        while (iterator.hasNext()) {
-            System.out
-                    .println(iterator.next().file.getName());
-            // ((IndexOutput) iterator.next()).flush();
+    /**
+     * Returns the open outputs of the named files, or all of them when
+     * <code>names</code> is <code>null</code>.
+     */
+    protected List<JEIndexOutput> getOpenOutputs(Collection<String> names) {
+        List<JEIndexOutput> outputs = new ArrayList<JEIndexOutput>();
+
+        synchronized (openFiles) {
+            for (JEIndexOutput output : openFiles)
+                if (names == null || names.contains(output.file.getName()))
+                    outputs.add(output);
         }
+
+        return outputs;
+    }
+
+    /**
+     * Flushes the open outputs of the named files, in parallel across up to
+     * {@link #setSyncThreads sync threads}, then syncs the environment once
+     * so that everything written so far is on disk. Files already closed
+     * need no flushing; the environment sync covers them.
+     * 
+     * An output is flushed from another thread than the one writing it, so
+     * the named files must not be written to while they are synced, as
+     * Lucene does once it syncs a file.
+     */
+    @Override
+    public void sync(Collection<String> names) throws IOException {
+        flush(names);
+        syncLog();
+    }
+
+    /**
+     * Flushes the open outputs of the named files, in parallel when there
+     * are several of them. The flushing threads write within the caller's
+     * transaction.
+     */
+    protected void flush(Collection<String> names) throws IOException {
+        List<JEIndexOutput> outputs = getOpenOutputs(names);
+
+        if (outputs.size() < 2 || syncThreads < 2) {
+            for (JEIndexOutput output : outputs)
+                output.flush();
+            return;
+        }
+
+        List<Future<Void>> results = new ArrayList<Future<Void>>(outputs.size());
+        ExecutorService pool = getSyncPool();
+        final Transaction txn = getTransaction();
+
+        try {
+            for (final JEIndexOutput output : outputs) {
+                results.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        Transaction previous = useTransaction(txn);
+
+                        try {
+                            output.flush();
+                        } finally {
+                            useTransaction(previous);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            /* wait for all of them before reporting the first failure */
+            IOException failure = null;
+
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = e.getCause() instanceof IOException
+                                ? (IOException) e.getCause()
+                                : new IOException(e.getCause());
+                }
+            }
+
+            if (failure != null)
+                throw failure;
+        } catch (InterruptedException e) {
+            throw new ThreadInterruptedException(e);
+        }
+    }
+
+    /**
+     * Writes the environment's log to disk, the one durable flush per sync.
+     * {@link Environment#sync} would force a checkpoint, writing every dirty
+     * internal node to the log first. Instead, a marker record is committed
+     * with {@link Durability#COMMIT_SYNC}: syncing the log up to that commit
+     * makes everything logged before it durable as well.
+     */
+    protected void syncLog() throws IOException {
+        Database db = locks != null ? locks : blocks;
+        Transaction txn = null;
+
+        try {
+            Environment env = db.getEnvironment();
+
+            if (env == null)
+                return;
+
+            if (!env.getConfig().getTransactional()) {
+                env.sync();
+                return;
+            }
+
+            txn = env.beginTransaction(null, null);
+            db.put(txn, new DatabaseEntry(SYNC_KEY), new DatabaseEntry(new byte[0]));
+            txn.commit(Durability.COMMIT_SYNC);
+            txn = null;
+        } catch (DatabaseException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            if (txn != null) {
+                try {
+                    txn.abort();
+                } catch (DatabaseException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the number of threads {@link #sync} flushes open outputs with.
+     * 
+     * @param threads
+     *            the maximum number of outputs flushed at once, 1 to flush
+     *            them in the calling thread
+     */
+    public void setSyncThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+
+        stopSync();
+        this.syncThreads = threads;
+    }
+
+    public int getSyncThreads() {
+        return syncThreads;
     }
 
     @Override
@@ -124,11 +427,19 @@ public class JEDirectory extends Directory {
 
     @Override
     public boolean fileExists(String name) throws IOException {
+        if (getCachedFile(name, getTransaction()) != null)
+            return true;
+
         return new File(name).exists(this);
     }
 
     @Override
     public long fileLength(String name) throws IOException {
+        byte[] bytes = getCachedFile(name, getTransaction());
+
+        if (bytes != null)
+            return File.getLong(bytes, 0);
+
         File file = new File(name);
 
         if (file.exists(this))
@@ -139,6 +450,11 @@ public class JEDirectory extends Directory {
 
     @Override
     public long fileModified(String name) throws IOException {
+        byte[] bytes = getCachedFile(name, getTransaction());
+
+        if (bytes != null)
+            return File.getLong(bytes, 8);
+
         File file = new File(name);
 
         if (file.exists(this))
@@ -154,31 +470,15 @@ public class JEDirectory extends Directory {
 
         try {
             try {
-                DatabaseEntry key = new DatabaseEntry(new byte[0]);
-                DatabaseEntry data = new DatabaseEntry(null);
-
-                data.setPartial(true);
-                // TODO see if cursor needs configuration
-                cursor = files.openCursor(txn, null);
-                // TODO see if LockMode should be set
-                if (cursor.getNext(key, data, null) != OperationStatus.NOTFOUND) {
-                    ByteArrayInputStream buffer = new ByteArrayInputStream(key
-                            .getData());
-                    DataInputStream in = new DataInputStream(buffer);
-                    String name = in.readUTF();
-
-                    in.close();
-                    list.add(name);
-
-                    while (cursor.getNext(key, data, null) != OperationStatus.NOTFOUND) {
-                        buffer = new ByteArrayInputStream(key.getData());
-                        in = new DataInputStream(buffer);
-                        name = in.readUTF();
-                        in.close();
-
-                        list.add(name);
-                    }
-                }
+                DatabaseEntry key = new DatabaseEntry();
+                DatabaseEntry data = new DatabaseEntry();
+                char[] chars = new char[128];
+
+                /* only keys are needed, don't read any record data */
+                data.setPartial(0, 0, true);
+                cursor = files.openCursor(getTransaction(), cursorConfig);
+                while (cursor.getNext(key, data, cursorLockMode) != OperationStatus.NOTFOUND)
+                    list.add(File.decodeName(key.getData(), chars));
             } finally {
                 if (cursor != null)
                     cursor.close();
@@ -197,7 +497,65 @@ public class JEDirectory extends Directory {
 
     @Override
     public Lock makeLock(String name) {
-        return new JELock();
+        return locks == null ? new JELock() : new JELock(this, name);
+    }
+
+    /**
+     * Forcibly releases the named lock, whoever holds it.
+     */
+    @Override
+    public void clearLock(String name) throws IOException {
+        if (locks == null)
+            return;
+
+        try {
+            locks.delete(null, new DatabaseEntry(name.getBytes("UTF-8")));
+        } catch (DatabaseException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the database holding the records of the locks made from now on,
+     * so that they exclude each other across directories and processes
+     * sharing the database. See {@link JELock}.
+     * 
+     * @param locks
+     *            a db handle to store lock records, or <code>null</code> for
+     *            in-memory locks
+     */
+    public void setLocks(Database locks) {
+        this.locks = locks;
+    }
+
+    public Database getLocks() {
+        return locks;
+    }
+
+    /**
+     * Sets the lease of locks made from now on and how often a lock being
+     * obtained with a timeout checks whether it has become free. A writer
+     * that dies without releasing its lock holds it until its lease expires.
+     * 
+     * @param lease
+     *            the lease length in milliseconds, 10 seconds by default
+     * @param pollInterval
+     *            the polling interval in milliseconds, 100 by default
+     */
+    public void setLockLease(long lease, long pollInterval) {
+        if (lease < 1L || pollInterval < 1L)
+            throw new IllegalArgumentException("lease and pollInterval must be positive");
+
+        this.lockLease = lease;
+        this.lockPollInterval = pollInterval;
+    }
+
+    /**
+     * Sets the name lock owners are identified by, followed by a unique
+     * suffix per lock. Defaults to the JVM's name, usually pid@host.
+     */
+    public void setLockOwner(String lockOwner) {
+        this.lockOwner = lockOwner;
     }
 
     @Override
@@ -211,15 +569,592 @@ public class JEDirectory extends Directory {
         file.modify(this, length, System.currentTimeMillis());
     }
 
+    /**
+     * Sets the cache shared by all the inputs opened on this directory, or
+     * <code>null</code> to read every block from the database.
+     * 
+     * @param blockCache
+     *            the block cache to use
+     */
+    public void setBlockCache(BlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Sets the maximum number of blocks an input prefetches with a single
+     * cursor scan once it detects sequential access. Values below 2 turn
+     * read-ahead off, which is the default.
+     * 
+     * @param readAhead
+     *            the maximum read-ahead window, in blocks
+     */
+    public void setReadAhead(int readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Turns the in-memory cache of file records on or off. With the cache on,
+     * {@link #fileExists}, {@link #fileLength} and {@link #fileModified} are
+     * answered without a database lookup for any file this directory has
+     * seen. The cache is kept up to date by every change made through this
+     * directory, changes made to the databases by other means are not seen.
+     * Records read with {@link LockMode#READ_UNCOMMITTED} are not cached.
+     * Records read or written in a transaction are only seen by that
+     * transaction, since they may not be committed yet.
+     * 
+     * @param enabled
+     *            whether to cache file records
+     */
+    public void setFileCaching(boolean enabled) {
+        synchronized (fileCacheLock) {
+            fileCacheVersion.incrementAndGet();
+            fileCache = enabled ? new ConcurrentHashMap<String, CachedFile>() : null;
+        }
+    }
+
+    /**
+     * Returns the cached record of the named file, if it is visible to
+     * <code>txn</code>, or <code>null</code>.
+     */
+    protected byte[] getCachedFile(String name, Transaction txn) {
+        Map<String, CachedFile> fileCache = this.fileCache;
+        CachedFile cached = fileCache == null ? null : fileCache.get(name);
+
+        if (cached == null || (cached.txn != null && cached.txn != txn))
+            return null;
+
+        return cached.bytes;
+    }
+
+    /**
+     * Caches a file record read from the database in <code>txn</code>,
+     * unless the cache changed since <code>version</code> was taken, before
+     * the record was read, in which case the record may be stale.
+     */
+    protected void cacheFile(String name, byte[] bytes, Transaction txn,
+            long version) {
+        synchronized (fileCacheLock) {
+            if (fileCache != null && fileCacheVersion.get() == version)
+                fileCache.put(name, new CachedFile(bytes, txn));
+        }
+    }
+
+    /**
+     * Caches a file record written through this directory in
+     * <code>txn</code>, or drops the named file from the cache when
+     * <code>bytes</code> is <code>null</code>.
+     */
+    protected void updateFile(String name, byte[] bytes, Transaction txn) {
+        synchronized (fileCacheLock) {
+            if (fileCache == null)
+                return;
+
+            fileCacheVersion.incrementAndGet();
+            if (bytes == null)
+                fileCache.remove(name);
+            else
+                fileCache.put(name, new CachedFile(bytes, txn));
+        }
+    }
+
+    /**
+     * Empties the file cache, after a transaction whose records may have
+     * been cached was aborted.
+     */
+    protected void clearFileCache() {
+        synchronized (fileCacheLock) {
+            fileCacheVersion.incrementAndGet();
+            if (fileCache != null)
+                fileCache.clear();
+        }
+    }
+
+    public boolean getFileCaching() {
+        return fileCache != null;
+    }
+
+    /**
+     * Sets the size of the data blocks of files created from now on to
+     * <code>2^blockShift</code> bytes. The block size is recorded with each
+     * file so files written with different block sizes can coexist. Files
+     * using the default, {@link JEIndexOutput#BLOCK_SHIFT}, keep the original
+     * record format.
+     * 
+     * @param blockShift
+     *            the base 2 logarithm of the block size, from 9 (512 bytes)
+     *            to 24 (16 megabytes)
+     */
+    public void setBlockShift(int blockShift) {
+        if (blockShift < 9 || blockShift > 24)
+            throw new IllegalArgumentException("blockShift must be between 9 and 24: " + blockShift);
+        if (extentShifts != null && blockShift > extentShifts[0])
+            throw new IllegalArgumentException("blockShift must not exceed the smallest extent shift: " + blockShift);
+
+        this.blockShift = blockShift;
+    }
+
+    public int getBlockShift() {
+        return blockShift;
+    }
+
+    /**
+     * Makes the blocks of files created from now on grow with the file. A
+     * file then starts with <code>counts[0]</code> blocks of the block size,
+     * followed by <code>counts[i]</code> extents of <code>2^shifts[i - 1]</code>
+     * bytes for each further tier, and continues with extents of
+     * <code>2^shifts[shifts.length - 1]</code> bytes. Large sequentially
+     * written files thus take far fewer records while small files keep small
+     * blocks. The extent table is recorded with each file.
+     * 
+     * For example, <code>setExtents(new int[] { 16, 16 }, new int[] { 18, 20 })</code>
+     * gives the first 256k of a file 16k blocks, the next 4m 256k extents
+     * and the rest 1m extents.
+     * 
+     * @param counts
+     *            the number of blocks of each tier but the last, or
+     *            <code>null</code> for blocks of the block size only
+     * @param shifts
+     *            the base 2 logarithms of the extent sizes, increasing, from
+     *            the block shift to 24
+     */
+    public void setExtents(int[] counts, int[] shifts) {
+        if (counts == null) {
+            extentCounts = null;
+            extentShifts = null;
+            return;
+        }
+        if (counts.length == 0 || counts.length != shifts.length || counts.length > 16)
+            throw new IllegalArgumentException("counts and shifts must have the same length, from 1 to 16");
+
+        for (int i = 0; i < counts.length; i++) {
+            int previous = i == 0 ? blockShift : shifts[i - 1];
+
+            if (counts[i] < 1)
+                throw new IllegalArgumentException("counts must be positive: " + counts[i]);
+            if (shifts[i] < previous || shifts[i] > 24)
+                throw new IllegalArgumentException("shifts must increase from the block shift to 24: " + shifts[i]);
+        }
+
+        extentCounts = counts.clone();
+        extentShifts = shifts.clone();
+    }
+
+    /**
+     * Turns write-behind on or off for outputs created from now on, with as
+     * many writer threads as <code>queue</code>, at most one per processor.
+     * 
+     * @see #setWriteBehind(int, int, int)
+     */
+    public void setWriteBehind(int batch, int queue) {
+        setWriteBehind(batch, queue, Math.min(queue, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Turns write-behind on or off for outputs created from now on. With
+     * write-behind on, an output collects <code>batch</code> filled blocks
+     * before writing them out in one go. With a positive <code>queue</code>
+     * the batches are written by a pool of writer threads shared by all
+     * outputs while the outputs go on filling their next ones; a writer
+     * blocks once <code>queue</code> batches are waiting. The batches of an
+     * output may be written in any order since they never hold the same
+     * block: an output waits for its batches before reading a block back.
+     * {@link IndexOutput#flush} and {@link IndexOutput#close} wait for all of
+     * an output's batches to be written.
+     * 
+     * @param batch
+     *            the number of blocks per batch, values below 2 turn
+     *            write-behind off, which is the default
+     * @param queue
+     *            the maximum number of batches waiting for the writer
+     *            threads, 0 to write batches in the calling thread
+     * @param threads
+     *            the number of writer threads, so that the batches of
+     *            concurrent outputs, of merges and of the indexing thread for
+     *            instance, are written in parallel
+     */
+    public synchronized void setWriteBehind(int batch, int queue, int threads) {
+        if (writer != null) {
+            writer.shutdown();
+            writer = null;
+            writeQueue = null;
+        }
+
+        if (batch > 1 && queue > 0) {
+            if (threads < 1)
+                throw new IllegalArgumentException("threads must be positive: " + threads);
+
+            writeQueue = new Semaphore(queue);
+            writer = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "JEDirectory writer");
+
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        this.writeBehind = batch > 1 ? batch : 0;
+        this.writeBehindThreads = writer != null ? threads : 0;
+    }
+
+    public int getWriteBehind() {
+        return writeBehind;
+    }
+
+    public int getWriteBehindThreads() {
+        return writeBehindThreads;
+    }
+
+    /**
+     * Sets the codec the blocks of files with the given extension are
+     * encoded with, for files created from now on. Blocks are decoded with
+     * whatever codec they were written with, see {@link BlockCodec}.
+     * 
+     * @param extension
+     *            the file name extension, without the dot; the empty string
+     *            stands for files without an extension
+     * @param codec
+     *            the codec, or <code>null</code> to store blocks as they are
+     */
+    public void setBlockCodec(String extension, BlockCodec codec) {
+        if (codec == null)
+            codecs.remove(extension);
+        else
+            codecs.put(extension, codec);
+    }
+
+    /**
+     * Returns the codec for writing the blocks of the named file, or
+     * <code>null</code>.
+     */
+    public BlockCodec getBlockCodec(String name) {
+        if (codecs.isEmpty())
+            return null;
+
+        int dot = name.lastIndexOf('.');
+
+        return codecs.get(dot < 0 ? "" : name.substring(dot + 1));
+    }
+
+    /**
+     * Turns block checksums on or off for files created from now on. Blocks
+     * of such files carry a CRC32C checksum, or a CRC32 one on Java versions
+     * without CRC32C, checked on read according to {@link #setVerifyMode}
+     * and by {@link #verify}.
+     * 
+     * @param checksums
+     *            whether to write block checksums
+     */
+    public void setBlockChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    public boolean getBlockChecksums() {
+        return checksums;
+    }
+
+    /**
+     * Sets when block checksums are checked as blocks are read: never, on
+     * every <code>interval</code>-th block read or on every block read. A
+     * checksum mismatch fails the read with an {@link IOException}.
+     * 
+     * @param mode
+     *            one of {@link #VERIFY_OFF}, the default,
+     *            {@link #VERIFY_SAMPLED} or {@link #VERIFY_ALWAYS}
+     * @param interval
+     *            the sampling interval of {@link #VERIFY_SAMPLED}
+     */
+    public void setVerifyMode(int mode, int interval) {
+        if (mode == VERIFY_SAMPLED && interval < 1)
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+
+        this.verifyMode = mode;
+        this.verifyInterval = interval;
+    }
+
+    public int getVerifyMode() {
+        return verifyMode;
+    }
+
+    /**
+     * Whether the block about to be read should have its checksum checked.
+     */
+    protected boolean verifyBlock() {
+        switch (verifyMode) {
+          case VERIFY_ALWAYS:
+            return true;
+          case VERIFY_SAMPLED:
+            return verifyCount.incrementAndGet() % verifyInterval == 0;
+          default:
+            return false;
+        }
+    }
+
+    /**
+     * Reads every block of every file, using <code>threads</code> threads,
+     * and checks that none is missing and that all of them decode and match
+     * their checksums, if they have one.
+     * 
+     * @return the names of the damaged files
+     */
+    public List<String> verify(int threads) throws IOException {
+        String[] names = listAll();
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(names.length);
+        List<String> damaged = new ArrayList<String>();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+
+        try {
+            for (int i = 0; i < names.length; i++) {
+                final String name = names[i];
+
+                results.add(pool.submit(new Callable<Boolean>() {
+                    public Boolean call() throws IOException {
+                        File file = new File(name);
+
+                        if (!file.exists(JEDirectory.this) || !file.hasKey())
+                            return true;
+
+                        return new Block(file, false).verify(JEDirectory.this);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < names.length; i++) {
+                try {
+                    if (!results.get(i).get())
+                        damaged.add(names[i]);
+                } catch (ExecutionException e) {
+                    damaged.add(names[i]);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new ThreadInterruptedException(e);
+        } finally {
+            pool.shutdown();
+        }
+
+        return damaged;
+    }
+
+    /**
+     * Makes new files take their ids from the given sequence instead of
+     * random uuids, so that creating a file doesn't have to look for an id
+     * that is not in use yet and the blocks of new files are appended to the
+     * blocks database in creation order. Ids are taken outside of the
+     * directory's transaction, an aborted file creation merely leaves a gap.
+     * The sequence must never be reset.
+     * 
+     * @param fileIds
+     *            the sequence to allocate file ids from, or <code>null</code>
+     *            for random uuids
+     */
+    public void setFileIdSequence(Sequence fileIds) {
+        this.fileIds = fileIds;
+    }
+
+    public Sequence getFileIdSequence() {
+        return fileIds;
+    }
+
+    /**
+     * Sets the database holding the blocks of files with compact block keys.
+     * Such keys consist of the file's sequence id and the block number, each
+     * encoded as its number of significant bytes followed by these bytes, in
+     * place of the 16 byte uuid and 8 byte block number. The database should
+     * be opened with key prefixing turned on so that the file id shared by
+     * neighboring keys is only stored once.
+     * 
+     * @param compactBlocks
+     *            a db handle to store compact keyed file data blocks.
+     * @see #setCompactBlockKeys
+     */
+    public void setCompactBlocks(Database compactBlocks) {
+        this.compactBlocks = compactBlocks;
+    }
+
+    public Database getCompactBlocks() {
+        return compactBlocks;
+    }
+
+    /**
+     * Sets whether new files store their blocks under compact keys. This
+     * takes a file id sequence and a compact blocks database; files keep the
+     * key format they were created with.
+     * 
+     * @see #setFileIdSequence
+     * @see #setCompactBlocks
+     */
+    public void setCompactBlockKeys(boolean compactKeys) {
+        this.compactKeys = compactKeys;
+    }
+
+    public boolean getCompactBlockKeys() {
+        return compactKeys;
+    }
+
+    /**
+     * Moves the blocks of all the files not using compact block keys yet to
+     * the compact blocks database, at most <code>batchSize</code> blocks per
+     * transaction. Each file's record is switched over once all its blocks
+     * have been copied, so that an interrupted run leaves every file
+     * readable; it merely leaves the copied blocks of the file being moved
+     * behind. This is an offline operation: no file may be open and the
+     * directory's transaction, if any, isn't used.
+     * 
+     * @return the number of files moved
+     */
+    public int compactBlockKeys(int batchSize) throws IOException {
+        if (fileIds == null || compactBlocks == null)
+            throw new IllegalStateException("compact block keys take a file id sequence and a compact blocks database");
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+
+        String[] names = listAll();
+        int count = 0;
+
+        for (int i = 0; i < names.length; i++) {
+            File file = new File(names[i]);
+
+            if (file.exists(this) && file.hasKey() && !file.isCompact()) {
+                file.compact(this, batchSize);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Makes deleting a file only delete its file record, leaving its data
+     * blocks to the given reclaimer. The reclaimer is closed along with this
+     * directory; it is up to the caller to start it.
+     * 
+     * @param reclaimer
+     *            the reclaimer to use, or <code>null</code> to delete blocks
+     *            along with their file again
+     */
+    public void setBlockReclaimer(BlockReclaimer reclaimer) {
+        this.reclaimer = reclaimer;
+    }
+
+    public BlockReclaimer getBlockReclaimer() {
+        return reclaimer;
+    }
+
+    /**
+     * Sets the size up to which files are read into memory as a whole when
+     * they are opened. Reading such a file, or any of its clones, then
+     * doesn't touch the database again. Negative values, the default, turn
+     * this off.
+     * 
+     * @param smallFileLimit
+     *            the largest file size, in bytes, to read in whole
+     */
+    public void setSmallFileLimit(int smallFileLimit) {
+        this.smallFileLimit = smallFileLimit;
+    }
+
+    public int getSmallFileLimit() {
+        return smallFileLimit;
+    }
+
+    /**
+     * Sets the size up to which the data of a file is stored in its file
+     * record instead of in data blocks. Such files take a single lookup to
+     * open and read, and no file id is allocated for them. Files are only
+     * stored inline if they fit in their first block. Negative values, the
+     * default, turn this off.
+     * 
+     * @param inlineLimit
+     *            the largest file size, in bytes, to store inline
+     */
+    public void setInlineLimit(int inlineLimit) {
+        this.inlineLimit = inlineLimit;
+    }
+
+    public int getInlineLimit() {
+        return inlineLimit;
+    }
+
+    /**
+     * Sets the lock mode used for reading file records and data blocks.
+     * Segment files are written once and never modified in place, so readers
+     * may use {@link LockMode#READ_UNCOMMITTED} or
+     * {@link LockMode#READ_COMMITTED} to stay out of the lock manager. Cursors
+     * used for reading are configured to match. The default,
+     * <code>null</code>, takes regular read locks.
+     * 
+     * @param lockMode
+     *            the lock mode to read with
+     */
+    public void setReadLockMode(LockMode lockMode) {
+        this.lockMode = lockMode;
+        this.cursorLockMode = lockMode == LockMode.READ_COMMITTED ? null : lockMode;
+
+        if (lockMode == LockMode.READ_UNCOMMITTED)
+            cursorConfig = CursorConfig.READ_UNCOMMITTED;
+        else if (lockMode == LockMode.READ_COMMITTED)
+            cursorConfig = CursorConfig.READ_COMMITTED;
+        else
+            cursorConfig = null;
+    }
+
+    public LockMode getReadLockMode() {
+        return lockMode;
+    }
+
+    public CursorConfig getReadCursorConfig() {
+        return cursorConfig;
+    }
+
     /**
      * Once a transaction handle was committed it is no longer valid. In order
      * to continue using this JEDirectory instance after a commit, the
-     * transaction handle has to be replaced.
+     * transaction handle has to be replaced. Since the previous transaction
+     * may have been aborted instead, the file records cached from it are
+     * dropped.
      * 
      * @param txn
      *            the new transaction handle to use
      */
     public void setTransaction(Transaction txn) {
         this.txn = txn;
+        clearFileCache();
+    }
+
+    /**
+     * Makes <code>txn</code> the transaction of the calling thread, for work
+     * handed over by another thread, and returns the thread's previous
+     * transaction to be restored the same way afterwards.
+     */
+    protected Transaction useTransaction(Transaction txn) {
+        Transaction previous = threadTxn.get();
+
+        if (txn == null)
+            threadTxn.remove();
+        else
+            threadTxn.set(txn);
+
+        return previous;
+    }
+
+    /**
+     * Returns the transaction database operations of the calling thread run
+     * in: the thread's own transaction if it has one, the transaction handle
+     * of this directory otherwise.
+     */
+    public Transaction getTransaction() {
+        Transaction txn = threadTxn.get();
+
+        return txn != null ? txn : this.txn;
     }
 }
@@ -35,6 +35,20 @@ public class JEIndexInput extends IndexInput {
 
     protected File file;
 
+    /* blocks prefetched by the last sequential read-ahead scan */
+    protected byte[][] ahead;
+
+    /* block indexes of the first prefetched block and of the last block read */
+    protected long aheadBlock, lastBlock = Long.MIN_VALUE;
+
+    protected int aheadCount, sequential;
+
+    /* whether block holds the block the current position falls into */
+    protected boolean loaded;
+
+    /* the whole file, shared with all clones, when it is small enough */
+    protected byte[] bytes;
+
     protected JEIndexInput(JEDirectory directory, String name)
             throws IOException {
         super();
@@ -47,23 +61,124 @@ public class JEIndexInput extends IndexInput {
 
         length = file.getLength();
 
-        block = new Block(file);
-        block.get(directory);
+        if (file.isInline())
+            bytes = file.getInlineData();
+        else if (length <= directory.smallFileLimit)
+            materialize();
+    }
+
+    /**
+     * Reads the whole file into {@link #bytes} with a single cursor scan.
+     */
+    protected void materialize() throws IOException {
+        byte[] bytes = new byte[(int) length];
+
+        if (length > 0) {
+            int count = (int) file.getBlockCount(length);
+            byte[][] blocks = new byte[count][];
+            Block block = new Block(file, false);
+
+            if (block.get(directory, blocks, count) != count)
+                throw new IOException(file.getName() + ": missing block");
+
+            for (int i = 0, pos = 0; i < count; i++) {
+                int len = Math.min(file.getBlockSize(i), bytes.length - pos);
+
+                System.arraycopy(blocks[i], 0, bytes, pos, len);
+                pos += len;
+            }
+        }
+
+        this.bytes = bytes;
     }
 
     @Override
     public Object clone() {
-        try {
-            JEIndexInput clone = (JEIndexInput) super.clone();
+        JEIndexInput clone = (JEIndexInput) super.clone();
+
+        clone.block = null;
+        clone.loaded = false;
+        clone.ahead = null;
+        clone.aheadCount = 0;
+        clone.sequential = 0;
 
-            clone.block = new Block(file);
-            clone.block.seek(position);
-            clone.block.get(directory);
+        return clone;
+    }
 
-            return clone;
-        } catch (IOException e) {
-            throw new RuntimeException(e.getMessage());
+    /**
+     * Reads the block the current position falls into. Opening, cloning and
+     * seeking only mark the block stale so that no block is read unless
+     * some byte of it is.
+     */
+    protected void load() throws IOException {
+        if (block == null)
+            block = new Block(file, false);
+
+        block.seek(position);
+        fetch();
+        loaded = true;
+    }
+
+    /**
+     * Reads the current block, going through the blocks prefetched by the
+     * last sequential scan and the directory's {@link BlockCache} first.
+     */
+    protected void fetch() throws IOException {
+        long index = block.getIndex();
+        BlockCache cache = directory.blockCache;
+
+        if (index == lastBlock + 1)
+            sequential++;
+        else
+            sequential = 0;
+        lastBlock = index;
+
+        if (ahead != null && index >= aheadBlock
+                && index < aheadBlock + aheadCount) {
+            block.setData(ahead[(int) (index - aheadBlock)]);
+            return;
+        }
+
+        if (cache != null) {
+            byte[] data = cache.get(block.getFileKey(), block.getNumber());
+
+            if (data != null) {
+                block.setData(data);
+                return;
+            }
+        }
+
+        if (sequential > 0 && directory.readAhead > 1) {
+            long remaining = file.getBlockCount(length) - index;
+            int count = (int) Math.min(remaining, Math.min(directory.readAhead,
+                    1L << Math.min(sequential, 30)));
+
+            if (count > 1) {
+                ahead = new byte[count][];
+                aheadBlock = index;
+                aheadCount = block.get(directory, ahead, count);
+
+                if (aheadCount > 0) {
+                    if (cache != null) {
+                        long start = block.getStart();
+
+                        for (int i = 0; i < aheadCount; i++) {
+                            block.seek(file.getBlockPosition(index + i));
+                            cache.put(block.getFileKey(), block.getNumber(), ahead[i]);
+                        }
+                        block.seek(start);
+                        block.setData(ahead[0]);
+                    }
+                    return;
+                }
+            }
         }
+
+        if (!block.get(directory))
+            throw new IOException(file.getName() + ": missing block " + block.getNumber());
+
+        if (cache != null)
+            cache.put(block.getFileKey(), block.getNumber(), block.getData());
     }
 
     @Override
@@ -80,13 +195,17 @@ public class JEIndexInput extends IndexInput {
         if (position + 1 > length)
             throw new IOException(file.getName() + ": Reading past end of file");
 
-        int blockPos = (int) (position++ & JEIndexOutput.BLOCK_MASK);
+        if (bytes != null)
+            return bytes[(int) position++];
+
+        if (!loaded)
+            load();
+
+        int blockPos = (int) (position++ - block.getStart());
         byte b = block.getData()[blockPos];
 
-        if (blockPos + 1 == JEIndexOutput.BLOCK_LEN) {
-            block.seek(position);
-            block.get(directory);
-        }
+        if (blockPos + 1 == block.getSize())
+            loaded = false;
 
         return b;
     }
@@ -95,11 +214,16 @@ public class JEIndexInput extends IndexInput {
     public void readBytes(byte[] b, int offset, int len) throws IOException {
         if (position + len > length)
             throw new IOException("Reading past end of file");
-        else {
-            int blockPos = (int) (position & JEIndexOutput.BLOCK_MASK);
+        else if (bytes != null) {
+            System.arraycopy(bytes, (int) position, b, offset, len);
+            position += len;
+        } else {
+            while (len > 0) {
+                if (!loaded)
+                    load();
 
-            while (blockPos + len >= JEIndexOutput.BLOCK_LEN) {
-                int blockLen = JEIndexOutput.BLOCK_LEN - blockPos;
+                int blockPos = (int) (position - block.getStart());
+                int blockLen = Math.min(len, block.getSize() - blockPos);
 
                 System
                         .arraycopy(block.getData(), blockPos, b, offset,
@@ -109,14 +233,8 @@ public class JEIndexInput extends IndexInput {
                 offset += blockLen;
                 position += blockLen;
 
-                block.seek(position);
-                block.get(directory);
-                blockPos = 0;
-            }
-
-            if (len > 0) {
-                System.arraycopy(block.getData(), blockPos, b, offset, len);
-                position += len;
+                if (blockPos + blockLen == block.getSize())
+                    loaded = false;
             }
         }
     }
@@ -126,10 +244,9 @@ public class JEIndexInput extends IndexInput {
         if (pos > length)
             throw new IOException("seeking past end of file");
 
-        if ((pos >>> JEIndexOutput.BLOCK_SHIFT) != (position >>> JEIndexOutput.BLOCK_SHIFT)) {
-            block.seek(pos);
-            block.get(directory);
-        }
+        if (loaded && (pos < block.getStart()
+                || pos >= block.getStart() + block.getSize()))
+            loaded = false;
 
         position = pos;
     }
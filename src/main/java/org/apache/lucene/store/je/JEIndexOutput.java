@@ -18,8 +18,21 @@ package org.apache.lucene.store.je;
  */
 
 import java.io.IOException;
-
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.apache.lucene.store.DataInput;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+import com.sleepycat.je.Transaction;
 
 /**
  * Port of Andi Vajda's DbDirectory to Java Edition of Berkeley Database
@@ -29,8 +42,8 @@ import org.apache.lucene.store.IndexOutput;
 public class JEIndexOutput extends IndexOutput {
 
     /**
-     * The size of data blocks, currently 16k (2^14), is determined by this
-     * constant.
+     * The default size of data blocks, 16k (2^14), is determined by this
+     * constant. See {@link JEDirectory#setBlockShift}.
      */
     static public final int BLOCK_SHIFT = 14;
 
@@ -46,80 +59,381 @@ public class JEIndexOutput extends IndexOutput {
 
     protected File file;
 
+    /* the blocks starting before this position exist in the database */
+    protected long stored;
+
+    /* whether the current block was written to since it was last stored */
+    protected boolean dirty;
+
+    /* write-behind: the batch size, the filled blocks not yet handed to the
+       writer and the batches the writer threads haven't finished yet */
+    protected int batch;
+
+    protected List<Block> pending;
+
+    protected List<Future<Void>> writing;
+
+    protected ExecutorService writer;
+
+    protected Semaphore writeQueue;
+
     protected JEIndexOutput(JEDirectory directory, String name, boolean create)
             throws IOException {
+        this(directory, name, create, null);
+    }
+
+    /**
+     * @param txn
+     *            the transaction the file is written in, or <code>null</code>
+     *            for the directory's transaction of the writing thread at the
+     *            time of each write, so that the directory's transaction may
+     *            be replaced while the file is open.
+     */
+    protected JEIndexOutput(JEDirectory directory, String name, boolean create,
+            Transaction txn) throws IOException {
         super();
 
         this.directory = directory;
 
-        file = new File(directory, name, create);
+        file = new File(directory, name, create, txn);
         block = new Block(file);
         length = file.getLength();
 
-        seek(length);
-        block.get(directory);
+        stored = length;
+
+        synchronized (directory) {
+            batch = directory.writeBehind;
+            writer = directory.writer;
+            writeQueue = directory.writeQueue;
+        }
+        if (batch > 0) {
+            pending = new ArrayList<Block>(batch);
+            writing = new ArrayList<Future<Void>>();
+        }
+
+        /* position on the last block and read it once, wherever it is */
+        block.seek(length);
+        position = length;
+        fetch();
 
         directory.openFiles.add(this);
     }
 
+    /**
+     * Reads the current block, unless it starts past the data stored so far
+     * in which case there is nothing to read.
+     */
+    protected void fetch() throws IOException {
+        if (block.getStart() < stored && file.isInline()) {
+            byte[] bytes = new byte[block.getSize()];
+
+            System.arraycopy(file.getInlineData(), 0, bytes, 0, (int) stored);
+            block.setData(bytes);
+        } else if (block.getStart() < stored) {
+            drain();
+            block.get(directory);
+
+            /* a trimmed last block comes back short, zero-fill the rest */
+            byte[] data = block.getData();
+            if (data.length < block.getSize()) {
+                byte[] bytes = new byte[block.getSize()];
+
+                System.arraycopy(data, 0, bytes, 0, data.length);
+                block.setData(bytes);
+            }
+        }
+    }
+
+    /**
+     * Trims the current block to the part of it inside the file.
+     */
+    protected void trim() {
+        block.trim((int) Math.min(block.getSize(), length - block.getStart()));
+    }
+
+    /**
+     * Writes the current block if it was modified. With write-behind on, the
+     * block is queued instead and replaced by a new one, which the caller is
+     * expected to seek.
+     */
+    protected void store() throws IOException {
+        if (!dirty)
+            return;
+
+        if (!file.hasKey())
+            file.allocate(directory);
+
+        dirty = false;
+        stored = Math.max(stored, block.getStart() + block.getSize());
+        trim();
+
+        if (batch == 0)
+            block.put(directory);
+        else {
+            pending.add(block);
+            block = new Block(file);
+
+            if (pending.size() >= batch)
+                submit();
+        }
+    }
+
+    /**
+     * Hands the pending blocks to the writer threads, or writes them right
+     * away when there are none.
+     */
+    protected void submit() throws IOException {
+        final List<Block> blocks = pending;
+        /* the writer threads write in the transaction of this thread */
+        final Transaction txn = file.getTransaction(directory);
+
+        pending = new ArrayList<Block>(batch);
+
+        for (Iterator<Future<Void>> iterator = writing.iterator(); iterator.hasNext();) {
+            Future<Void> future = iterator.next();
+
+            if (future.isDone()) {
+                complete(future);
+                iterator.remove();
+            }
+        }
+
+        if (writer != null) {
+            try {
+                writeQueue.acquire();
+            } catch (InterruptedException e) {
+                throw new ThreadInterruptedException(e);
+            }
+
+            try {
+                writing.add(writer.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        Transaction previous = directory.useTransaction(txn);
+
+                        try {
+                            write(blocks);
+                        } finally {
+                            directory.useTransaction(previous);
+                            writeQueue.release();
+                        }
+                        return null;
+                    }
+                }));
+                return;
+            } catch (RejectedExecutionException e) {
+                /* the directory's writer was shut down, write in this thread */
+                writeQueue.release();
+            }
+        }
+
+        write(blocks);
+    }
+
+    protected void write(List<Block> blocks) throws IOException {
+        for (Block block : blocks)
+            block.put(directory);
+    }
+
+    /**
+     * Waits for all the blocks queued so far to be written.
+     */
+    protected void drain() throws IOException {
+        if (batch == 0)
+            return;
+
+        if (!pending.isEmpty())
+            submit();
+
+        for (Future<Void> future : writing)
+            complete(future);
+        writing.clear();
+    }
+
+    protected void complete(Future<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            throw new ThreadInterruptedException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
     @Override
     public void close() throws IOException {
-        flush();
+        if (isInline()) {
+            drain();
+            file.setInline(block.getData(), (int) length);
+        } else {
+            flush();
+            file.flags &= ~File.INLINE;
+        }
         file.modify(directory, length, System.currentTimeMillis());
 
         directory.openFiles.remove(this);
     }
 
+    /**
+     * Whether the file is small enough to be stored inline, in which case its
+     * whole data is in the current block.
+     */
+    protected boolean isInline() {
+        return length <= directory.inlineLimit && block.getStart() == 0L
+                && length <= block.getSize();
+    }
+
     @Override
     public void flush() throws IOException {
-        if (length > 0)
+        drain();
+
+        /* the data of an inline candidate is only written on close */
+        if (dirty && !isInline()) {
+            if (!file.hasKey())
+                file.allocate(directory);
+            trim();
             block.put(directory);
+            stored = Math.max(stored, block.getStart() + block.getSize());
+            dirty = false;
+        }
     }
 
     @Override
     public void writeByte(byte b) throws IOException {
-        int blockPos = (int) (position++ & BLOCK_MASK);
+        int blockPos = (int) (position++ - block.getStart());
 
         block.getData()[blockPos] = b;
-
-        if (blockPos + 1 == BLOCK_LEN) {
-            block.put(directory);
-            block.seek(position);
-            block.get(directory);
-        }
+        dirty = true;
 
         if (position > length)
             length = position;
+
+        if (blockPos + 1 == block.getSize()) {
+            store();
+            block.seek(position);
+            fetch();
+        }
     }
 
     @Override
     public void writeBytes(byte[] b, int offset, int len) throws IOException {
-        int blockPos = (int) (position & BLOCK_MASK);
+        int blockPos = (int) (position - block.getStart());
 
-        while (blockPos + len >= BLOCK_LEN) {
-            int blockLen = BLOCK_LEN - blockPos;
+        while (blockPos + len >= block.getSize()) {
+            int blockLen = block.getSize() - blockPos;
 
             System.arraycopy(b, offset, block.getData(), blockPos, blockLen);
-            block.put(directory);
+            dirty = true;
 
             len -= blockLen;
             offset += blockLen;
             position += blockLen;
 
+            if (position > length)
+                length = position;
+
+            store();
             block.seek(position);
-            block.get(directory);
+            fetch();
             blockPos = 0;
         }
 
         if (len > 0) {
             System.arraycopy(b, offset, block.getData(), blockPos, len);
             position += len;
+            dirty = true;
         }
 
         if (position > length)
             length = position;
     }
 
+    /**
+     * Copies from inputs of the same directory straight out of their blocks,
+     * without going through an intermediate buffer. Whole blocks landing at
+     * the start of an output block of the same size and format are copied
+     * as they are stored, without decoding and encoding them again.
+     */
+    @Override
+    public void copyBytes(DataInput input, long numBytes) throws IOException {
+        if (!(input instanceof JEIndexInput)
+                || ((JEIndexInput) input).directory != directory) {
+            super.copyBytes(input, numBytes);
+            return;
+        }
+
+        JEIndexInput in = (JEIndexInput) input;
+        Block source = null;
+
+        if (in.position + numBytes > in.length)
+            throw new IOException(in.file.getName() + ": Reading past end of file");
+
+        if (in.bytes != null) {
+            writeBytes(in.bytes, (int) in.position, (int) numBytes);
+            in.position += numBytes;
+            return;
+        }
+
+        while (numBytes > 0) {
+            if (source == null)
+                source = new Block(in.file, false);
+            source.seek(in.position);
+
+            int len = (int) Math.min(source.getSize(), in.length - source.getStart());
+
+            if (in.position == source.getStart()
+                    && isAligned(source, len, numBytes)) {
+                byte[] record = source.getRecord(directory);
+
+                if (record == null)
+                    throw new IOException(in.file.getName() + ": missing block " + source.getNumber());
+                if (!file.hasKey())
+                    file.allocate(directory);
+
+                block.putRecord(directory, record);
+                stored = Math.max(stored, block.getStart() + block.getSize());
+                position += len;
+                length = position;
+                block.seek(position);
+                fetch();
+
+                in.position += len;
+                in.loaded = false;
+                numBytes -= len;
+            } else {
+                if (!in.loaded)
+                    in.load();
+
+                int blockPos = (int) (in.position - in.block.getStart());
+                int blockLen = (int) Math.min(numBytes, in.block.getSize() - blockPos);
+
+                writeBytes(in.block.getData(), blockPos, blockLen);
+
+                in.position += blockLen;
+                numBytes -= blockLen;
+                if (blockPos + blockLen == in.block.getSize())
+                    in.loaded = false;
+            }
+        }
+    }
+
+    /**
+     * Whether the <code>len</code> bytes of the <code>source</code> block can
+     * be appended to this file as the block's record.
+     */
+    protected boolean isAligned(Block source, int len, long numBytes) {
+        int format = File.BLOCK_HEADER | File.BLOCK_CHECKSUM | File.BLOCK_CRC32C;
+
+        return len <= numBytes && !dirty
+                && position == length && position == block.getStart()
+                && source.getSize() == block.getSize()
+                && (source.file.flags & format) == (file.flags & format)
+                && !(position == 0L && len <= directory.inlineLimit);
+    }
+
     @Override
     public long length() throws IOException {
         return length;
@@ -130,12 +444,12 @@ public class JEIndexOutput extends IndexOutput {
         if (pos > length)
             throw new IOException("seeking past end of file");
 
-        if ((pos >>> BLOCK_SHIFT) == (position >>> BLOCK_SHIFT))
+        if (pos >= block.getStart() && pos < block.getStart() + block.getSize())
             position = pos;
         else {
-            block.put(directory);
+            store();
             block.seek(pos);
-            block.get(directory);
+            fetch();
             position = pos;
         }
     }
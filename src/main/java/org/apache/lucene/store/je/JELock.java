@@ -17,37 +17,350 @@ package org.apache.lucene.store.je;
  * limitations under the License.
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+
 import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockObtainFailedException;
+import org.apache.lucene.store.LockReleaseFailedException;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockConflictException;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
 
 /**
  * Port of Andi Vajda's DbDirectory to Java Edition of Berkeley Database
- *
+ * 
+ * Without a locks database, a JELock is a flag of its own and protects
+ * nothing. With one, see {@link JEDirectory#setLocks}, the lock is a record
+ * of that database keyed by the lock's name and holding its owner and the
+ * expiry of the owner's lease. A lock is free when it has no record or when
+ * its lease expired, so that a standby writer can take over the lock of a
+ * writer that died. While it is held, a heartbeat thread renews the lease
+ * every third of its length. The owners of a lock compare leases against
+ * their own clocks, which should be kept in sync.
  */
 
 public class JELock extends Lock {
 
     boolean isLocked = false;
 
+    protected JEDirectory directory;
+
+    protected String name, owner;
+
+    protected Heartbeat heartbeat;
+
     public JELock()
     {
     }
 
+    /**
+     * @param directory
+     *            the directory whose locks database holds the lock
+     * @param name
+     *            the name of the lock
+     */
+    public JELock(JEDirectory directory, String name)
+    {
+        this.directory = directory;
+        this.name = name;
+        this.owner = directory.lockOwner + "/" + UUID.randomUUID();
+    }
+
     @Override
-    public boolean obtain()
+    public synchronized boolean obtain() throws IOException
     {
-        return (isLocked = true);
+        if (directory == null)
+            return (isLocked = true);
+
+        if (heartbeat != null) {
+            if (!heartbeat.lost)
+                return true;
+            heartbeat.close();
+            heartbeat = null;
+        }
+
+        if (!update(System.currentTimeMillis() + directory.lockLease, true))
+            return false;
+
+        heartbeat = new Heartbeat();
+        heartbeat.start();
+        directory.heldLocks.add(this);
+
+        return true;
+    }
+
+    /**
+     * Polls for the lock at the directory's poll interval, see
+     * {@link JEDirectory#setLockLease}, in place of Lucene's default second.
+     */
+    @Override
+    public boolean obtain(long lockWaitTimeout) throws IOException
+    {
+        if (directory == null)
+            return super.obtain(lockWaitTimeout);
+
+        if (lockWaitTimeout < 0 && lockWaitTimeout != LOCK_OBTAIN_WAIT_FOREVER)
+            throw new IllegalArgumentException("lockWaitTimeout should be LOCK_OBTAIN_WAIT_FOREVER or a non-negative number (got " + lockWaitTimeout + ")");
+
+        long until = System.currentTimeMillis() + lockWaitTimeout;
+
+        failureReason = null;
+        while (!obtain()) {
+            long now = System.currentTimeMillis();
+
+            if (lockWaitTimeout != LOCK_OBTAIN_WAIT_FOREVER && now >= until) {
+                String reason = "Lock obtain timed out: " + this;
+                LockObtainFailedException e = new LockObtainFailedException(failureReason == null ? reason : reason + ": " + failureReason);
+
+                if (failureReason != null)
+                    e.initCause(failureReason);
+                throw e;
+            }
+
+            long pause = directory.lockPollInterval;
+
+            if (lockWaitTimeout != LOCK_OBTAIN_WAIT_FOREVER)
+                pause = Math.min(pause, until - now);
+
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                throw new ThreadInterruptedException(e);
+            }
+        }
+
+        return true;
     }
 
+    /**
+     * Releases this lock. Like NativeFSLock, a lock this instance doesn't
+     * hold, as when {@link org.apache.lucene.index.IndexWriter#unlock}
+     * releases a new instance, is released only if it is free.
+     * 
+     * @throws LockReleaseFailedException
+     *             if another owner holds the lock
+     */
     @Override
-    public void release()
+    public void release() throws IOException
     {
-        isLocked = false;
+        if (directory == null) {
+            isLocked = false;
+            return;
+        }
+
+        boolean held;
+
+        synchronized (this) {
+            held = heartbeat != null && !heartbeat.lost;
+        }
+
+        stop();
+        failureReason = null;
+        if (!update(0L, !held))
+            throw new LockReleaseFailedException("Cannot forcefully unlock a lock held by another owner: " + this + (failureReason == null ? "" : ": " + failureReason.getMessage()));
+    }
+
+    /**
+     * Stops renewing this lock's lease, waiting for a renewal in progress.
+     */
+    protected synchronized void stop()
+    {
+        if (heartbeat != null) {
+            heartbeat.close();
+            heartbeat = null;
+        }
+        directory.heldLocks.remove(this);
     }
 
     @Override
-    public boolean isLocked()
+    public boolean isLocked() throws IOException
     {
-        return isLocked;
+        if (directory == null)
+            return isLocked;
+
+        try {
+            DatabaseEntry data = new DatabaseEntry();
+
+            if (directory.locks.get(null, getKey(), data, null) != OperationStatus.SUCCESS)
+                return false;
+
+            return getExpiry(data) > System.currentTimeMillis();
+        } catch (DatabaseException e) {
+            throw new IOException(e.getMessage());
+        }
     }
-}
 
+    /**
+     * Writes this lock's record with the given lease expiry, or deletes it
+     * when <code>expiry</code> is 0, if the lock is this lock's, or free and
+     * <code>take</code> is set.
+     * 
+     * @return whether the record was written or deleted, or is already gone
+     */
+    protected boolean update(long expiry, boolean take) throws IOException
+    {
+        Database locks = directory.locks;
+        Environment env = locks.getEnvironment();
+        Transaction txn = null;
+
+        try {
+            if (env.getConfig().getTransactional())
+                txn = env.beginTransaction(null, null);
+
+            DatabaseEntry key = getKey();
+            DatabaseEntry data = new DatabaseEntry();
+            boolean found = locks.get(txn, key, data, LockMode.RMW) == OperationStatus.SUCCESS;
+            boolean ours = found && owner.equals(getOwner(data));
+
+            if (!found && expiry == 0L)
+                return true;
+
+            if (!ours && !(take && (!found || getExpiry(data) <= System.currentTimeMillis()))) {
+                if (found)
+                    failureReason = new IOException("held by " + getOwner(data));
+                return false;
+            }
+
+            if (expiry > 0L)
+                locks.put(txn, key, encode(expiry));
+            else
+                locks.delete(txn, key);
+
+            if (txn != null)
+                txn.commit();
+            txn = null;
+
+            return true;
+        } catch (LockConflictException e) {
+            /* another owner is updating the record */
+            if (!take)
+                throw new IOException(e.getMessage());
+            failureReason = e;
+            return false;
+        } catch (DatabaseException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            if (txn != null) {
+                try {
+                    txn.abort();
+                } catch (DatabaseException e) {
+                }
+            }
+        }
+    }
+
+    protected DatabaseEntry getKey() throws IOException
+    {
+        return new DatabaseEntry(name.getBytes("UTF-8"));
+    }
+
+    protected DatabaseEntry encode(long expiry) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeUTF(owner);
+        out.writeLong(expiry);
+        out.close();
+
+        return new DatabaseEntry(bytes.toByteArray());
+    }
+
+    protected static String getOwner(DatabaseEntry data) throws IOException
+    {
+        return new DataInputStream(new ByteArrayInputStream(data.getData(), data.getOffset(), data.getSize())).readUTF();
+    }
+
+    protected static long getExpiry(DatabaseEntry data) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data.getData(), data.getOffset(), data.getSize()));
+
+        in.readUTF();
+        return in.readLong();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "JELock@" + name + (owner == null ? "" : " " + owner);
+    }
+
+    /**
+     * Renews the lease of a held lock until closed, or until the lock turns
+     * out to have been taken over after a renewal came too late.
+     */
+    protected class Heartbeat extends Thread {
+
+        protected volatile boolean closed, lost;
+
+        /* waited on between renewals; not the thread itself, whose monitor
+           join uses */
+        private final Object pause = new Object();
+
+        protected Heartbeat()
+        {
+            super("JELock heartbeat " + name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            while (!closed) {
+                synchronized (pause) {
+                    try {
+                        if (!closed)
+                            pause.wait(Math.max(1L, directory.lockLease / 3));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed)
+                    break;
+
+                try {
+                    if (!update(System.currentTimeMillis() + directory.lockLease, false)) {
+                        System.err.println("WARNING: JELock -- lost " + JELock.this);
+                        lost = true;
+                        break;
+                    }
+                } catch (IOException e) {
+                    System.err.println("WARNING: JELock -- renewing " + JELock.this + ": " + e.getMessage());
+                } catch (IllegalStateException e) {
+                    /* the locks database was closed */
+                    lost = true;
+                    break;
+                }
+            }
+        }
+
+        protected void close()
+        {
+            closed = true;
+
+            synchronized (pause) {
+                pause.notifyAll();
+            }
+
+            if (Thread.currentThread() != this && isAlive()) {
+                try {
+                    join();
+                } catch (InterruptedException e) {
+                    throw new ThreadInterruptedException(e);
+                }
+            }
+        }
+    }
+}
@@ -17,26 +17,50 @@ package net.mongonet.lucene.store.je;
  * limitations under the License.
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Random;
-
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockObtainFailedException;
+import org.apache.lucene.store.LockReleaseFailedException;
+import org.apache.lucene.store.je.BlockCache;
+import org.apache.lucene.store.je.BlockCodec;
+import org.apache.lucene.store.je.BlockReclaimer;
+import org.apache.lucene.store.je.JEDirectory;
+import org.apache.lucene.store.je.JEIndexOutput;
 import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.Version;
 import com.sleepycat.je.DatabaseException;
 
 
 import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Durability;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.EnvironmentStats;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.Transaction;
@@ -50,6 +74,71 @@ import com.sleepycat.je.Transaction;
 public class JEMongoStoreTest extends LuceneTestCase {
     protected File dbHome = new File(TEMP_DIR,"index");
 
+    /* forwards to a database handle, counting the gets and puts */
+    static class CountingDatabase extends Database {
+        Database db;
+        int gets, puts;
+
+        CountingDatabase(Database db) {
+            super(db.getEnvironment());
+            this.db = db;
+        }
+
+        @Override
+        public OperationStatus get(Transaction txn, DatabaseEntry key, DatabaseEntry data, LockMode lockMode) {
+            gets++;
+            return db.get(txn, key, data, lockMode);
+        }
+
+        @Override
+        public OperationStatus put(Transaction txn, DatabaseEntry key, DatabaseEntry data) {
+            puts++;
+            return db.put(txn, key, data);
+        }
+
+        @Override
+        public OperationStatus delete(Transaction txn, DatabaseEntry key) {
+            return db.delete(txn, key);
+        }
+
+        @Override
+        public Cursor openCursor(Transaction txn, CursorConfig config) {
+            return db.openCursor(txn, config);
+        }
+
+        @Override
+        public Environment getEnvironment() {
+            return db.getEnvironment();
+        }
+    }
+
+    /* a blocks database whose puts take a while, recording how many ran at once */
+    static class SlowDatabase extends CountingDatabase {
+        AtomicInteger active = new AtomicInteger();
+        int maxActive;
+
+        SlowDatabase(Database db) {
+            super(db);
+        }
+
+        @Override
+        public OperationStatus put(Transaction txn, DatabaseEntry key, DatabaseEntry data) {
+            int count = active.incrementAndGet();
+
+            synchronized (this) {
+                maxActive = Math.max(maxActive, count);
+            }
+            try {
+                Thread.sleep(10L);
+                return super.put(txn, key, data);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+
     protected Environment env;
     protected DatabaseConfig dbConfig;
     protected EnvironmentConfig envConfig;
@@ -587,4 +676,1517 @@ public class JEMongoStoreTest extends LuceneTestCase {
           System.out.println(" total milliseconds");
         }
     }
+
+    public void testBlockCacheSegments() throws Exception {
+        byte[] first = { 1, 2, 3 };
+        byte[] second = { 4, 5, 6 };
+        BlockCache cache = new BlockCache(64 << 10, 4);
+
+        for (long number = 0L; number < 8L; number++) {
+            cache.put(first, number, new byte[1024]);
+            cache.put(second, number, new byte[1024]);
+        }
+        assertEquals(16 << 10, cache.getBytes());
+
+        /* invalidating a file leaves the blocks of other files alone */
+        cache.invalidate(first);
+        assertEquals(8 << 10, cache.getBytes());
+        for (long number = 0L; number < 8L; number++) {
+            assertNull(cache.get(first, number));
+            assertNotNull(cache.get(second, number));
+        }
+
+        cache.remove(second, 3L);
+        assertNull(cache.get(second, 3L));
+        assertEquals(7 << 10, cache.getBytes());
+
+        /* a single segment evicts the least recently used block first */
+        cache = new BlockCache(3 << 10, 1);
+        cache.put(first, 0L, new byte[1024]);
+        cache.put(first, 1L, new byte[1024]);
+        cache.put(first, 2L, new byte[1024]);
+        assertNotNull(cache.get(first, 0L));
+        cache.put(first, 3L, new byte[1024]);
+        assertNull(cache.get(first, 1L));
+        assertNotNull(cache.get(first, 0L));
+        assertEquals(3 << 10, cache.getBytes());
+
+        cache.invalidate(first);
+        assertEquals(0L, cache.getBytes());
+    }
+
+    public void testBlockCache() throws Exception {
+        final int count = 50;
+        final int LENGTH_MASK = 0xffff;
+
+        final long seed = random.nextLong();
+        Random gen = new Random(seed);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        /* big enough for all the files, up to 50 * 64k, so that the second
+           pass is served from the cache; a smaller LRU cache is flushed by
+           each sequential pass before any of its blocks is read again */
+        BlockCache cache = new BlockCache(8 << 20);
+        store.setBlockCache(cache);
+
+        try {
+            for (int i = 0; i < count; i++) {
+                String name = i + ".dat";
+                int length = gen.nextInt() & LENGTH_MASK;
+                IndexOutput file = store.createOutput(name);
+                byte[] data = new byte[length];
+
+                gen.nextBytes(data);
+                file.writeBytes(data, length);
+                file.close();
+            }
+
+            long misses = 0L;
+
+            for (int pass = 0; pass < 2; pass++) {
+                gen = new Random(seed);
+                if (pass == 1)
+                    misses = cache.getMisses();
+
+                for (int i = 0; i < count; i++) {
+                    String name = i + ".dat";
+                    int length = gen.nextInt() & LENGTH_MASK;
+                    IndexInput file = store.openInput(name);
+                    IndexInput clone = (IndexInput) file.clone();
+                    byte[] data = new byte[length];
+                    byte[] read = new byte[length];
+
+                    gen.nextBytes(data);
+                    clone.readBytes(read, 0, length);
+                    assertTrue("contents incorrect", Arrays.equals(data, read));
+
+                    file.close();
+                }
+            }
+
+            /* every block was read once, on the first pass */
+            assertTrue(misses > 0);
+            assertEquals(misses, cache.getMisses());
+            assertTrue(cache.getHits() >= misses);
+            assertTrue(cache.getBytes() <= cache.getMaxBytes());
+
+            store.beginTransaction();
+            for (int i = 0; i < count; i++)
+                store.deleteFile(i + ".dat");
+            store.commitTransaction();
+
+            assertEquals(0L, cache.getBytes());
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testReadAhead() throws Exception {
+        final int length = 40 * 16384 + 123;
+
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        store.setReadAhead(8);
+        store.setReadLockMode(LockMode.READ_UNCOMMITTED);
+
+        try {
+            IndexOutput output = store.createOutput("big.dat");
+            output.writeBytes(data, length);
+            output.close();
+
+            assertEquals(1, store.listAll().length);
+
+            IndexInput input = store.openInput("big.dat");
+            for (int i = 0; i < length; i++)
+                assertEquals(data[i], input.readByte());
+
+            for (int i = 0; i < 100; i++) {
+                int pos = random.nextInt(length);
+                int len = Math.min(length - pos, random.nextInt(3 * 16384));
+                byte[] read = new byte[len];
+
+                input.seek(pos);
+                input.readBytes(read, 0, len);
+                for (int j = 0; j < len; j++)
+                    assertEquals(data[pos + j], read[j]);
+            }
+            input.close();
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testReadLockMode() throws Exception {
+        final byte[] data = new byte[3 * 16384];
+        random.nextBytes(data);
+
+        final JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            IndexOutput output = store.createOutput("old.dat");
+            output.writeBytes(data, data.length);
+            output.close();
+
+            assertNull(store.getReadCursorConfig());
+            store.setReadLockMode(LockMode.READ_COMMITTED);
+            assertEquals(CursorConfig.READ_COMMITTED, store.getReadCursorConfig());
+            store.setReadLockMode(LockMode.READ_UNCOMMITTED);
+            assertEquals(CursorConfig.READ_UNCOMMITTED, store.getReadCursorConfig());
+
+            /* a writer holding an uncommitted file, in a transaction of its own thread */
+            final CountDownLatch written = new CountDownLatch(1);
+            final CountDownLatch finish = new CountDownLatch(1);
+            final Exception[] failure = new Exception[1];
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        store.beginTransaction();
+                        IndexOutput output = store.createOutput("new.dat");
+                        output.writeBytes(data, data.length);
+                        output.close();
+                        written.countDown();
+
+                        finish.await();
+                        Thread.sleep(100L);
+                        store.abortTransaction();
+                    } catch (Exception e) {
+                        failure[0] = e;
+                        written.countDown();
+                    }
+                }
+            };
+            writer.start();
+            try {
+                written.await();
+
+                /* dirty reads see the uncommitted file without waiting for it */
+                assertTrue(Arrays.asList(store.listAll()).contains("new.dat"));
+                assertTrue(store.fileExists("new.dat"));
+                IndexInput input = store.openInput("old.dat");
+                byte[] read = new byte[data.length];
+                input.readBytes(read, 0, data.length);
+                assertTrue(Arrays.equals(data, read));
+                input.close();
+
+                /* committed reads wait for the writer, then don't see what it aborted */
+                store.setReadLockMode(LockMode.READ_COMMITTED);
+                finish.countDown();
+                assertEquals(Arrays.asList("old.dat"), Arrays.asList(store.listAll()));
+                assertFalse(store.fileExists("new.dat"));
+                assertTrue(store.fileExists("old.dat"));
+                input = store.openInput("old.dat");
+                input.readBytes(read, 0, data.length);
+                assertTrue(Arrays.equals(data, read));
+                input.close();
+            } finally {
+                finish.countDown();
+                writer.join();
+            }
+            if (failure[0] != null)
+                throw failure[0];
+
+            store.setReadLockMode(null);
+            assertNull(store.getReadCursorConfig());
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testFileCache() throws Exception {
+        long modified;
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        store.setFileCaching(true);
+        store.setSmallFileLimit(4096);
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                IndexOutput file = store.createOutput(i + ".dat");
+                for (int j = 0; j < i * 1000; j++)
+                    file.writeByte((byte) j);
+                file.close();
+            }
+
+            for (int i = 0; i < 10; i++) {
+                assertTrue(store.fileExists(i + ".dat"));
+                assertEquals(i * 1000L, store.fileLength(i + ".dat"));
+
+                IndexInput file = store.openInput(i + ".dat");
+                IndexInput clone = (IndexInput) file.clone();
+                clone.seek(i * 500L);
+                for (int j = i * 500; j < i * 1000; j++)
+                    assertEquals((byte) j, clone.readByte());
+                file.close();
+            }
+
+            store.touchFile("3.dat");
+            modified = store.fileModified("3.dat");
+
+            store.beginTransaction();
+            store.deleteFile("5.dat");
+            store.commitTransaction();
+            assertFalse(store.fileExists("5.dat"));
+        } finally {
+            store.close();
+        }
+
+        store = new JEMongoDirectory(env,dbConfig);
+        try {
+            assertFalse(store.fileExists("5.dat"));
+            assertEquals(3000L, store.fileLength("3.dat"));
+            assertEquals(modified, store.fileModified("3.dat"));
+            assertEquals(9, store.listAll().length);
+
+            String name = "\u00e9t\u00e9-\u4e2d\u0000.dat";
+            store.createOutput(name).close();
+            assertTrue(Arrays.asList(store.listAll()).contains(name));
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testFileCacheAbort() throws Exception {
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            /* a plain directory learns of an abort through setTransaction */
+            Transaction txn = env.beginTransaction(null, null);
+            JEDirectory directory = new JEDirectory(txn, store.getIndex(), store.getBlocks());
+            directory.setFileCaching(true);
+
+            IndexOutput output = directory.createOutput("aborted.dat");
+            output.writeBytes(new byte[100], 100);
+            output.close();
+            assertTrue(directory.fileExists("aborted.dat"));
+            txn.abort();
+
+            txn = env.beginTransaction(null, null);
+            directory.setTransaction(txn);
+            assertFalse(directory.fileExists("aborted.dat"));
+            txn.commit();
+
+            /* dirty reads of another thread's uncommitted file aren't cached */
+            directory.setTransaction(null);
+            directory.setReadLockMode(LockMode.READ_UNCOMMITTED);
+            txn = env.beginTransaction(null, null);
+            JEDirectory writer = new JEDirectory(txn, store.getIndex(), store.getBlocks());
+            output = writer.createOutput("dirty.dat");
+            output.writeBytes(new byte[100], 100);
+            output.close();
+            assertTrue(directory.fileExists("dirty.dat"));
+            txn.abort();
+            assertFalse(directory.fileExists("dirty.dat"));
+
+            /* a file written in another thread's transaction isn't seen
+               from the cache before that transaction commits */
+            store.setFileCaching(true);
+            final JEMongoDirectory shared = store;
+            final CountDownLatch written = new CountDownLatch(1);
+            final CountDownLatch abort = new CountDownLatch(1);
+            final boolean[] exists = new boolean[1];
+            Thread writing = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        shared.beginTransaction();
+                        IndexOutput output = shared.createOutput("uncommitted.dat");
+                        output.writeBytes(new byte[100], 100);
+                        output.close();
+                        written.countDown();
+                        abort.await();
+                        shared.abortTransaction();
+                    } catch (Exception e) {
+                        written.countDown();
+                    }
+                }
+            };
+            Thread reading = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        exists[0] = shared.fileExists("uncommitted.dat");
+                    } catch (IOException e) {
+                        exists[0] = true;
+                    }
+                }
+            };
+            writing.start();
+            try {
+                written.await();
+                reading.start();
+                /* the reader waits for the writer's record lock */
+                Thread.sleep(200L);
+            } finally {
+                abort.countDown();
+                writing.join();
+            }
+            reading.join();
+            assertFalse(exists[0]);
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testBlockSize() throws Exception {
+        final int[] shifts = { 10, 14, 17 };
+        final int length = 300000;
+
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            for (int i = 0; i < shifts.length; i++) {
+                store.setBlockShift(shifts[i]);
+
+                IndexOutput output = store.createOutput(i + ".dat");
+                output.writeBytes(data, length / 2);
+                for (int j = length / 2; j < length; j++)
+                    output.writeByte(data[j]);
+                output.seek(1000);
+                output.writeBytes(data, 1000, 5000);
+                output.close();
+            }
+        } finally {
+            store.close();
+        }
+
+        store = new JEMongoDirectory(env,dbConfig);
+        try {
+            for (int i = 0; i < shifts.length; i++) {
+                IndexInput input = store.openInput(i + ".dat");
+                byte[] read = new byte[length];
+
+                assertEquals(length, input.length());
+                input.readBytes(read, 0, length);
+                assertTrue(Arrays.equals(data, read));
+
+                input.seek(length - 1);
+                assertEquals(data[length - 1], input.readByte());
+                input.close();
+
+                store.deleteFile(i + ".dat");
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testAppendReads() throws Exception {
+        final int length = 5 * 16384 + 77;
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            CountingDatabase blocks = new CountingDatabase(store.getBlocks());
+            JEDirectory directory = new JEDirectory(null, store.getIndex(), blocks);
+
+            IndexOutput output = directory.createOutput("_0.frq");
+            blocks.gets = 0;
+
+            /* appending never looks up blocks that were never stored */
+            for (int i = 0; i < length; i += 1000)
+                output.writeBytes(data, i, Math.min(1000, length - i));
+            assertEquals(5, blocks.puts);
+            assertEquals(0, blocks.gets);
+
+            /* seeking back into a stored block does read it */
+            output.seek(16384L + 5);
+            assertEquals(1, blocks.gets);
+            output.close();
+
+            IndexInput input = directory.openInput("_0.frq");
+            byte[] read = new byte[length];
+            input.readBytes(read, 0, length);
+            assertTrue(Arrays.equals(data, read));
+            input.close();
+
+            /* opening a file for appending reads its last block once */
+            blocks.gets = 0;
+            output = new JEIndexOutput(directory, "_0.frq", false) {};
+            assertEquals(1, blocks.gets);
+            assertEquals(length, output.getFilePointer());
+            output.writeBytes(data, 100);
+            output.close();
+
+            input = directory.openInput("_0.frq");
+            read = new byte[length + 100];
+            input.readBytes(read, 0, length + 100);
+            assertTrue(Arrays.equals(data, Arrays.copyOf(read, length)));
+            assertTrue(Arrays.equals(Arrays.copyOf(data, 100), Arrays.copyOfRange(read, length, length + 100)));
+            input.close();
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testWriteBehind() throws Exception {
+        final int length = 50 * 16384 + 17;
+
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            for (int queue = 0; queue < 3; queue += 2) {
+                store.setWriteBehind(4, queue);
+
+                IndexOutput output = store.createOutput(queue + ".dat");
+                output.writeLong(0L);
+                output.writeBytes(data, 8, length - 8);
+                output.seek(0L);
+                output.writeBytes(data, 8);
+                output.seek(length);
+                output.close();
+
+                IndexInput input = store.openInput(queue + ".dat");
+                byte[] read = new byte[length];
+                input.readBytes(read, 0, length);
+                assertTrue(Arrays.equals(data, read));
+                input.close();
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testWriteBehindThreads() throws Exception {
+        final int length = 16 * 16384;
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            SlowDatabase blocks = new SlowDatabase(store.getBlocks());
+            JEDirectory directory = new JEDirectory(null, store.getIndex(), blocks);
+            directory.setWriteBehind(2, 4, 4);
+            assertEquals(4, directory.getWriteBehindThreads());
+
+            /* the batches queued are written in parallel */
+            IndexOutput[] outputs = new IndexOutput[2];
+            for (int i = 0; i < outputs.length; i++)
+                outputs[i] = directory.createOutput("_" + i + ".frq");
+            for (int i = 0; i < length; i += 16384)
+                for (IndexOutput output : outputs)
+                    output.writeBytes(data, i, 16384);
+            for (IndexOutput output : outputs)
+                output.close();
+            assertTrue(blocks.maxActive > 1);
+
+            for (int i = 0; i < outputs.length; i++) {
+                IndexInput input = directory.openInput("_" + i + ".frq");
+                byte[] read = new byte[length];
+                input.readBytes(read, 0, length);
+                assertTrue(Arrays.equals(data, read));
+                input.close();
+            }
+            directory.close();
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testDirtyBlocks() throws Exception {
+        final int length = 4 * 16384 + 300;
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            CountingDatabase blocks = new CountingDatabase(store.getBlocks());
+            JEDirectory directory = new JEDirectory(null, store.getIndex(), blocks);
+
+            IndexOutput output = directory.createOutput("_0.frq");
+            output.writeInt(0);
+            output.writeBytes(data, 4, length - 4);
+            output.flush();
+            assertEquals(5, blocks.puts);
+
+            /* flushing again, or moving off a clean block, writes nothing */
+            output.flush();
+            output.seek(2 * 16384L);
+            output.seek(16384L);
+            assertEquals(5, blocks.puts);
+
+            /* patching the header rewrites its block only, once */
+            output.seek(0L);
+            output.writeBytes(data, 0, 4);
+            output.seek(length);
+            assertEquals(6, blocks.puts);
+            output.flush();
+            output.close();
+            assertEquals(6, blocks.puts);
+
+            IndexInput input = directory.openInput("_0.frq");
+            byte[] read = new byte[length];
+            input.readBytes(read, 0, length);
+            assertTrue(Arrays.equals(data, read));
+            input.close();
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testTrimmedBlocks() throws Exception {
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        Cursor cursor = null;
+
+        try {
+            IndexOutput output = store.createOutput("segments.gen");
+            output.writeInt(-2);
+            output.writeLong(1L);
+            output.writeLong(1L);
+            output.seek(0L);
+            output.writeInt(-2);
+            output.close();
+
+            IndexInput input = store.openInput("segments.gen");
+            assertEquals(20L, input.length());
+            input.seek(4L);
+            assertEquals(1L, input.readLong());
+            input.close();
+
+            cursor = store.getBlocks().openCursor(null, null);
+
+            DatabaseEntry foundKey = new DatabaseEntry();
+            DatabaseEntry foundData = new DatabaseEntry();
+
+            assertEquals(OperationStatus.SUCCESS, cursor.getNext(foundKey, foundData, LockMode.DEFAULT));
+            assertEquals(20, foundData.getSize());
+            assertEquals(OperationStatus.NOTFOUND, cursor.getNext(foundKey, foundData, LockMode.DEFAULT));
+        } finally {
+            if (cursor != null)
+                cursor.close();
+            store.close();
+        }
+    }
+
+    public void testBlockCodec() throws Exception {
+        final int length = 10 * 16384 + 99;
+
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (random.nextInt(4) + 'a');
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        store.setBlockCodec("fdt", BlockCodec.DEFLATE);
+        try {
+            for (String name : new String[] { "_0.fdt", "_0.frq" }) {
+                IndexOutput output = store.createOutput(name);
+                output.writeBytes(data, length);
+                output.seek(3L);
+                output.writeByte(data[3]);
+                output.close();
+
+                IndexInput input = store.openInput(name);
+                byte[] read = new byte[length];
+                input.readBytes(read, 0, length);
+                assertTrue(Arrays.equals(data, read));
+                input.close();
+            }
+
+            assertTrue(blocksSize(store) < length + length / 2);
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testSampledReadAhead() throws Exception {
+        final int length = 64 * 16384;
+
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        store.setBlockChecksums(true);
+        try {
+            IndexOutput output = store.createOutput("_0.frq");
+            output.writeBytes(data, length);
+            output.close();
+
+            /* damage the checksum of every block */
+            List<byte[]> keys = new ArrayList<byte[]>();
+            List<byte[]> records = new ArrayList<byte[]>();
+            DatabaseEntry foundKey = new DatabaseEntry();
+            DatabaseEntry foundData = new DatabaseEntry();
+            Cursor cursor = store.getBlocks().openCursor(null, null);
+            try {
+                while (cursor.getNext(foundKey, foundData, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+                    keys.add(foundKey.getData());
+                    records.add(foundData.getData());
+                }
+            } finally {
+                cursor.close();
+            }
+            assertEquals(64, keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                records.get(i)[5] ^= 0x01;
+                store.getBlocks().put(null, new DatabaseEntry(keys.get(i)), new DatabaseEntry(records.get(i)));
+            }
+
+            /* a sequential read takes a handful of growing read-ahead scans;
+               sampling every 8th block still checks 8 of the 64 */
+            store.setReadAhead(64);
+            store.setVerifyMode(JEDirectory.VERIFY_SAMPLED, 8);
+            IndexInput input = store.openInput("_0.frq");
+            try {
+                input.readBytes(new byte[length], 0, length);
+                fail("checksum mismatch not detected");
+            } catch (IOException e) {
+            } finally {
+                input.close();
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testBadBlockHeader() throws Exception {
+        final int length = 2 * 16384 + 99;
+
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (random.nextInt(4) + 'a');
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        store.setBlockCodec("fdt", BlockCodec.DEFLATE);
+        try {
+            IndexOutput output = store.createOutput("_0.fdt");
+            output.writeBytes(data, length);
+            output.close();
+
+            DatabaseEntry foundKey = new DatabaseEntry();
+            DatabaseEntry foundData = new DatabaseEntry();
+            Cursor cursor = store.getBlocks().openCursor(null, null);
+            try {
+                assertEquals(OperationStatus.SUCCESS, cursor.getFirst(foundKey, foundData, LockMode.DEFAULT));
+            } finally {
+                cursor.close();
+            }
+            byte[] record = foundData.getData();
+
+            /* a negative or oversized length, an unknown codec, a stored
+               block whose length doesn't match its record */
+            byte[][] headers = { { 1, (byte) 0x80, 0, 0, 0 }, { 1, 0, 1, 0, 0 },
+                                 { 99, 0, 0, 0x40, 0 }, { 0, 0, 0, 0x40, 0 } };
+            for (byte[] header : headers) {
+                byte[] bad = record.clone();
+                System.arraycopy(header, 0, bad, 0, header.length);
+                store.getBlocks().put(null, foundKey, new DatabaseEntry(bad));
+
+                IndexInput input = store.openInput("_0.fdt");
+                try {
+                    input.readBytes(new byte[length], 0, length);
+                    fail("bad block header not detected");
+                } catch (IOException e) {
+                    assertTrue(e.getMessage(), e.getMessage().startsWith("_0.fdt: "));
+                } finally {
+                    input.close();
+                }
+                assertEquals(Arrays.asList("_0.fdt"), store.verify(1));
+            }
+
+            store.getBlocks().put(null, foundKey, new DatabaseEntry(record));
+            assertTrue(store.verify(1).isEmpty());
+        } finally {
+            store.close();
+        }
+    }
+
+    protected long blocksSize(JEMongoDirectory store) throws Exception {
+        Cursor cursor = store.getBlocks().openCursor(null, null);
+        DatabaseEntry foundKey = new DatabaseEntry();
+        DatabaseEntry foundData = new DatabaseEntry();
+        long size = 0L;
+
+        try {
+            while (cursor.getNext(foundKey, foundData, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+                size += foundData.getSize();
+        } finally {
+            cursor.close();
+        }
+
+        return size;
+    }
+
+    public void testChecksums() throws Exception {
+        final int length = 3 * 16384 + 5;
+
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        store.setBlockChecksums(true);
+        store.setBlockCodec("fdt", BlockCodec.DEFLATE);
+        try {
+            for (String name : new String[] { "_0.fdt", "_0.frq", "_1.frq" }) {
+                IndexOutput output = store.createOutput(name);
+                output.writeBytes(data, length);
+                output.close();
+            }
+            assertTrue(store.verify(2).isEmpty());
+
+            /* flip a byte in the payload of the last block written */
+            DatabaseEntry foundKey = new DatabaseEntry();
+            DatabaseEntry foundData = new DatabaseEntry();
+            Cursor cursor = store.getBlocks().openCursor(null, null);
+            try {
+                assertEquals(OperationStatus.SUCCESS, cursor.getLast(foundKey, foundData, LockMode.DEFAULT));
+            } finally {
+                cursor.close();
+            }
+            foundData.getData()[foundData.getSize() - 1] ^= 0x20;
+            store.getBlocks().put(null, foundKey, foundData);
+
+            assertEquals(1, store.verify(2).size());
+
+            store.setVerifyMode(JEDirectory.VERIFY_ALWAYS, 0);
+            String name = store.verify(1).get(0);
+            IndexInput input = store.openInput(name);
+            try {
+                input.readBytes(new byte[length], 0, length);
+                fail("checksum mismatch not detected");
+            } catch (IOException e) {
+            } finally {
+                input.close();
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testReclaimer() throws Exception {
+        final int length = 10 * 16384 + 7;
+
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        /* delete with a reclaimer that never runs, as if it had crashed */
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        Database pending = env.openDatabase(null, "__reclaim__", dbConfig);
+        try {
+            store.setBlockReclaimer(new BlockReclaimer(store, pending, 3, 0));
+
+            IndexOutput output = store.createOutput("_0.frq");
+            output.writeBytes(data, length);
+            output.close();
+
+            store.deleteFile("_0.frq");
+            assertFalse(store.fileExists("_0.frq"));
+            assertEquals((long) length, blocksSize(store));
+        } finally {
+            store.close();
+            pending.close();
+        }
+
+        store = new JEMongoDirectory(env,dbConfig);
+        try {
+            store.startReclaimer(3, 0);
+
+            BlockReclaimer reclaimer = store.getBlockReclaimer();
+            for (int i = 0; i < 100 && reclaimer.getReclaimed() < 11L; i++)
+                Thread.sleep(100L);
+
+            assertEquals(0L, blocksSize(store));
+            assertEquals(11L, store.getBlockReclaimer().getReclaimed());
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testFileIds() throws Exception {
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            for (String name : new String[] { "_0.frq", "_1.frq", "_2.frq" }) {
+                IndexOutput output = store.createOutput(name);
+                output.writeInt(name.hashCode());
+                output.close();
+            }
+
+            /* blocks are found in file creation order */
+            Cursor cursor = store.getBlocks().openCursor(null, null);
+            DatabaseEntry foundKey = new DatabaseEntry();
+            DatabaseEntry foundData = new DatabaseEntry();
+            try {
+                for (String name : new String[] { "_0.frq", "_1.frq", "_2.frq" }) {
+                    assertEquals(OperationStatus.SUCCESS, cursor.getNext(foundKey, foundData, LockMode.DEFAULT));
+                    assertEquals((byte) 0xff, foundKey.getData()[0]);
+                    assertEquals(name.hashCode(), new DataInputStream(new ByteArrayInputStream(foundData.getData())).readInt());
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testOlderEnvironment() throws Exception {
+        /* an environment created before the databases added since, opened without allowCreate */
+        String[] names = { "__index__", "__blocks__" };
+        for (String name : names)
+            env.openDatabase(null, name, dbConfig).close();
+
+        DatabaseConfig searchConfig = dbConfig.clone();
+        searchConfig.setAllowCreate(false);
+
+        byte[] data = new byte[20000];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,searchConfig);
+        try {
+            assertNull(store.getFileIdSequence());
+            assertNull(store.getCompactBlocks());
+            assertNull(store.getLocks());
+
+            Lock lock = store.makeLock("write.lock");
+            assertTrue(lock.obtain());
+            assertTrue(lock.isLocked());
+            lock.release();
+
+            IndexOutput output = store.createOutput("_0.frq");
+            output.writeBytes(data, data.length);
+            output.close();
+
+            IndexInput input = store.openInput("_0.frq");
+            byte[] read = new byte[data.length];
+            input.readBytes(read, 0, data.length);
+            assertTrue(Arrays.equals(data, read));
+            input.close();
+        } finally {
+            store.close();
+        }
+        assertFalse(env.getDatabaseNames().contains("__sequences__"));
+        assertFalse(env.getDatabaseNames().contains("__blocks_v2__"));
+        assertFalse(env.getDatabaseNames().contains("__locks__"));
+    }
+
+    public void testCompactBlockKeys() throws Exception {
+        final int length = 5 * 16384 + 11;
+
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            for (String name : new String[] { "_0.frq", "_0.prx" }) {
+                IndexOutput output = store.createOutput(name);
+                output.writeBytes(data, length);
+                output.close();
+            }
+            store.createOutput("_0.nrm").close();
+
+            assertEquals(3, store.compactBlockKeys(2));
+            assertEquals(0L, blocksSize(store));
+            assertEquals(0, store.compactBlockKeys(2));
+
+            store.setCompactBlockKeys(true);
+            IndexOutput output = store.createOutput("_1.frq");
+            output.writeBytes(data, length);
+            output.close();
+
+            for (String name : new String[] { "_0.frq", "_0.prx", "_1.frq" }) {
+                IndexInput input = store.openInput(name);
+                byte[] read = new byte[length];
+                input.readBytes(read, 0, length);
+                assertTrue(Arrays.equals(data, read));
+                input.close();
+            }
+            assertEquals(0L, store.fileLength("_0.nrm"));
+            assertEquals(0L, blocksSize(store));
+
+            store.deleteFile("_0.frq");
+            store.deleteFile("_1.frq");
+
+            Cursor cursor = store.getCompactBlocks().openCursor(null, null);
+            DatabaseEntry foundKey = new DatabaseEntry();
+            DatabaseEntry foundData = new DatabaseEntry();
+            int count = 0;
+            try {
+                while (cursor.getNext(foundKey, foundData, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+                    assertTrue(foundKey.getSize() <= 4);
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+            assertEquals(6, count);
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testInlineFiles() throws Exception {
+        byte[] data = new byte[100];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        store.setInlineLimit(64);
+        try {
+            for (String name : new String[] { "segments.gen", "_0.frq" }) {
+                int length = name.equals("_0.frq") ? 100 : 20;
+                IndexOutput output = store.createOutput(name);
+                output.writeBytes(data, length);
+                output.flush();
+                output.close();
+            }
+            store.createOutput("_0.del").close();
+
+            /* only the file past the limit has a block */
+            assertEquals(100L, blocksSize(store));
+        } finally {
+            store.close();
+        }
+
+        store = new JEMongoDirectory(env,dbConfig);
+        try {
+            assertEquals(20L, store.fileLength("segments.gen"));
+            assertEquals(0L, store.fileLength("_0.del"));
+
+            for (String name : new String[] { "segments.gen", "_0.frq" }) {
+                IndexInput input = store.openInput(name);
+                byte[] read = new byte[(int) input.length()];
+                input.readBytes(read, 0, read.length);
+                for (int i = 0; i < read.length; i++)
+                    assertEquals(data[i], read[i]);
+                input.close();
+            }
+
+            store.deleteFile("segments.gen");
+            assertFalse(store.fileExists("segments.gen"));
+            assertEquals(100L, blocksSize(store));
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testExtents() throws Exception {
+        final int length = 300 * 1024 + 17;
+
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        store.setBlockShift(12);
+        store.setExtents(new int[] { 2, 2 }, new int[] { 15, 16 });
+        store.setBlockChecksums(true);
+        store.setReadAhead(4);
+        try {
+            IndexOutput output = store.createOutput("_0.frq");
+            for (int pos = 0; pos < length; pos += 1000)
+                output.writeBytes(data, pos, Math.min(1000, length - pos));
+            output.seek(40000L);
+            output.writeByte(data[40000]);
+            output.close();
+
+            /* 2 blocks of 4k, 2 extents of 32k, then 64k extents */
+            Cursor cursor = store.getBlocks().openCursor(null, null);
+            DatabaseEntry foundKey = new DatabaseEntry();
+            DatabaseEntry foundData = new DatabaseEntry();
+            int count = 0;
+            try {
+                while (cursor.getNext(foundKey, foundData, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+                    count++;
+            } finally {
+                cursor.close();
+            }
+            assertEquals(8, count);
+            assertTrue(store.verify(1).isEmpty());
+
+            IndexInput input = store.openInput("_0.frq");
+            byte[] read = new byte[length];
+            input.readBytes(read, 0, length);
+            assertTrue(Arrays.equals(data, read));
+
+            IndexInput clone = (IndexInput) input.clone();
+            for (int i = 0; i < 200; i++) {
+                int pos = random.nextInt(length);
+                clone.seek(pos);
+                assertEquals(data[pos], clone.readByte());
+            }
+            clone.close();
+            input.close();
+
+            store.setSmallFileLimit(length);
+            input = store.openInput("_0.frq");
+            input.readBytes(read, 0, length);
+            assertTrue(Arrays.equals(data, read));
+            input.close();
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testRecreate() throws Exception {
+        final int length = 300 * 1024 + 17;
+
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        store.setReadAhead(4);
+        try {
+            IndexOutput output = store.createOutput("_0.frq");
+            output.writeBytes(data, length);
+            output.close();
+
+            /* recreated in another format, the file keeps none of its old blocks */
+            store.setBlockShift(12);
+            store.setExtents(new int[] { 2, 2 }, new int[] { 15, 16 });
+            output = store.createOutput("_0.frq");
+            output.writeBytes(data, 100000);
+            output.close();
+
+            /* 2 blocks of 4k, 2 extents of 32k, then a 64k extent */
+            Cursor cursor = store.getBlocks().openCursor(null, null);
+            DatabaseEntry foundKey = new DatabaseEntry();
+            DatabaseEntry foundData = new DatabaseEntry();
+            int count = 0;
+            try {
+                while (cursor.getNext(foundKey, foundData, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+                    count++;
+            } finally {
+                cursor.close();
+            }
+            assertEquals(5, count);
+            assertTrue(store.verify(1).isEmpty());
+
+            IndexInput input = store.openInput("_0.frq");
+            assertEquals(100000L, input.length());
+            byte[] read = new byte[100000];
+            input.readBytes(read, 0, read.length);
+            assertTrue(Arrays.equals(Arrays.copyOf(data, read.length), read));
+            input.close();
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testCopyBytes() throws Exception {
+        final int length = 6 * 16384 + 123;
+
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        store.setBlockChecksums(true);
+        try {
+            IndexOutput output = store.createOutput("_0.frq");
+            output.writeBytes(data, length);
+            output.close();
+
+            /* aligned: copied record by record, then unaligned */
+            IndexInput input = store.openInput("_0.frq");
+            output = store.createOutput("_0.cfs");
+            output.copyBytes(input, length);
+            input.seek(5L);
+            output.copyBytes(input, length - 5);
+            output.writeByte((byte) 7);
+            output.close();
+            input.close();
+
+            assertTrue(store.verify(1).isEmpty());
+            assertEquals(2L * length - 4, store.fileLength("_0.cfs"));
+
+            input = store.openInput("_0.cfs");
+            byte[] read = new byte[length];
+            input.readBytes(read, 0, length);
+            assertTrue(Arrays.equals(data, read));
+            input.readBytes(read, 5, length - 5);
+            assertTrue(Arrays.equals(data, read));
+            assertEquals((byte) 7, input.readByte());
+            input.close();
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testConcurrentOutputs() throws Exception {
+        final int length = 3 * 16384 + 1;
+        final byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        final JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            /* an open output of this thread doesn't get in the way of others */
+            IndexOutput open = store.createOutput("_9.frq");
+            open.writeBytes(data, 100);
+
+            Thread[] threads = new Thread[4];
+            final Exception[] failures = new Exception[threads.length];
+            for (int i = 0; i < threads.length; i++) {
+                final int n = i;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int j = 0; j < 5; j++) {
+                                IndexOutput output = store.createOutput("_" + n + "_" + j + ".frq");
+                                output.writeBytes(data, length);
+                                output.close();
+                            }
+
+                            /* a thread's own transaction only rolls back its work */
+                            store.beginTransaction();
+                            IndexOutput output = store.createOutput("_" + n + ".tmp");
+                            output.writeBytes(data, length);
+                            output.close();
+                            store.abortTransaction();
+                        } catch (Exception e) {
+                            failures[n] = e;
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (int i = 0; i < threads.length; i++) {
+                threads[i].join();
+                if (failures[i] != null)
+                    throw failures[i];
+            }
+            open.close();
+
+            assertEquals(21, store.listAll().length);
+            for (int i = 0; i < threads.length; i++) {
+                assertFalse(store.fileExists("_" + i + ".tmp"));
+                IndexInput input = store.openInput("_" + i + "_4.frq");
+                byte[] read = new byte[length];
+                input.readBytes(read, 0, length);
+                assertTrue(Arrays.equals(data, read));
+                input.close();
+            }
+            assertEquals(100L, store.fileLength("_9.frq"));
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testReplaceTransaction() throws Exception {
+        final int length = 3 * 16384 + 11;
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            /* flush, commit and go on writing in a new transaction */
+            Transaction txn = env.beginTransaction(null, null);
+            JEDirectory directory = new JEDirectory(txn, store.getIndex(), store.getBlocks());
+            directory.setWriteBehind(2, 1);
+
+            IndexOutput output = directory.createOutput("_0.frq");
+            output.writeBytes(data, 0, 20000);
+            directory.flush();
+            txn.commit();
+
+            txn = env.beginTransaction(null, null);
+            directory.setTransaction(txn);
+            output.writeBytes(data, 20000, length - 20000);
+            output.close();
+            txn.commit();
+            directory.setTransaction(null);
+
+            IndexInput input = directory.openInput("_0.frq");
+            byte[] read = new byte[length];
+            input.readBytes(read, 0, length);
+            assertTrue(Arrays.equals(data, read));
+            input.close();
+            directory.close();
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testGroupCommit() throws Exception {
+        final int length = 2 * 16384 + 7;
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            store.setGroupCommit(true);
+            /* opening the directory commits once, with the default durability */
+            long base = store.commits.get();
+
+            for (int i = 0; i < 10; i++) {
+                IndexOutput output = store.createOutput("_" + i + ".frq");
+                output.writeBytes(data, length);
+                output.close();
+            }
+            assertEquals(base + 10L, store.commits.get());
+            assertEquals(0L, store.durable);
+
+            /* one sync covers all the commits so far, a second has nothing
+               to do; neither forces a checkpoint */
+            EnvironmentStats before = env.getStats(null);
+            store.sync(Arrays.asList(store.listAll()));
+            assertEquals(base + 10L, store.durable);
+            store.sync(Arrays.asList(store.listAll()));
+            assertEquals(base + 10L, store.durable);
+            EnvironmentStats after = env.getStats(null);
+            assertEquals(before.getNCheckpoints(), after.getNCheckpoints());
+            assertEquals(before.getNFSyncs() + 1, after.getNFSyncs());
+
+            store.deleteFile("_0.frq");
+            store.setGroupCommit(false);
+        } finally {
+            store.close();
+        }
+
+        JEMongoDirectory reopened = new JEMongoDirectory(env,dbConfig);
+        try {
+            assertEquals(9, reopened.listAll().length);
+            IndexInput input = reopened.openInput("_9.frq");
+            byte[] read = new byte[length];
+            input.readBytes(read, 0, length);
+            assertTrue(Arrays.equals(data, read));
+            input.close();
+        } finally {
+            reopened.close();
+        }
+    }
+
+    public void testDefaultDurability() throws Exception {
+        byte[] data = new byte[1000];
+        random.nextBytes(data);
+
+        /* commits with the environment's durability may not be synced */
+        env.setMutableConfig(env.getMutableConfig().setDurability(Durability.COMMIT_NO_SYNC));
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            /* opening the directory commits once, with the default durability */
+            long base = store.commits.get();
+
+            IndexOutput output = store.createOutput("_0.frq");
+            output.writeBytes(data, data.length);
+            output.close();
+            assertEquals(base + 1L, store.commits.get());
+
+            store.sync(Arrays.asList("_0.frq"));
+            assertEquals(base + 1L, store.durable);
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testDurabilityPolicy() throws Exception {
+        DurabilityPolicy policy = DurabilityPolicy.lucene();
+        policy.setExtension("tmp", Durability.COMMIT_WRITE_NO_SYNC);
+        assertEquals(Durability.COMMIT_SYNC, policy.getDurability("segments_2"));
+        assertEquals(Durability.COMMIT_NO_SYNC, policy.getDurability("segments.gen"));
+        assertEquals(Durability.COMMIT_NO_SYNC, policy.getDurability("_0.frq"));
+        assertEquals(Durability.COMMIT_WRITE_NO_SYNC, policy.getDurability("_0.tmp"));
+
+        byte[] data = new byte[1000];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            store.setDurabilityPolicy(policy);
+            /* opening the directory commits once, with the default durability */
+            long base = store.commits.get();
+
+            String[] names = { "_0.frq", "_0.tmp", "segments_1", "_1.frq" };
+            for (int i = 0; i < names.length; i++) {
+                IndexOutput output = store.createOutput(names[i]);
+                output.writeBytes(data, data.length);
+                output.close();
+
+                /* the commit point's synced commit covers the data before it */
+                if (i == 1) {
+                    assertEquals(base + 2L, store.commits.get());
+                    assertEquals(0L, store.durable);
+                } else if (i == 2) {
+                    assertEquals(base + 2L, store.commits.get());
+                    assertEquals(base + 2L, store.durable);
+                }
+            }
+            assertEquals(base + 3L, store.commits.get());
+
+            /* sync leaves the data to the next commit point's synced commit */
+            store.sync(Arrays.asList(names));
+            assertEquals(base + 2L, store.durable);
+            store.syncCommits();
+            assertEquals(base + 3L, store.durable);
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testLuceneCommit() throws Exception {
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            store.setDurabilityPolicy(DurabilityPolicy.lucene());
+            store.setGroupCommit(true);
+            /* no lease renewal during the test */
+            store.setLockLease(60000L, 100L);
+
+            IndexWriter writer = new IndexWriter(store, new IndexWriterConfig(Version.LUCENE_34, new WhitespaceAnalyzer(Version.LUCENE_34)));
+            try {
+                for (int commit = 0; commit < 3; commit++) {
+                    for (int i = 0; i < 10; i++) {
+                        Document doc = new Document();
+                        doc.add(new Field("body", "commit " + commit + " doc " + i, Field.Store.YES, Field.Index.ANALYZED));
+                        writer.addDocument(doc);
+                    }
+
+                    /* the synced commit of segments_N makes the segment data durable too */
+                    EnvironmentStats before = env.getStats(null);
+                    writer.commit();
+                    EnvironmentStats after = env.getStats(null);
+                    assertEquals(before.getNCheckpoints(), after.getNCheckpoints());
+                    assertEquals(before.getNFSyncs() + 1, after.getNFSyncs());
+                }
+            } finally {
+                writer.close();
+            }
+
+            IndexReader reader = IndexReader.open(store);
+            assertEquals(30, reader.numDocs());
+            reader.close();
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testSyncLog() throws Exception {
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            JEDirectory directory = new JEDirectory(null, store.getIndex(), store.getBlocks());
+            IndexOutput output = directory.createOutput("_0.frq");
+            output.writeBytes(new byte[40000], 40000);
+            output.close();
+
+            /* a sync is one log sync, not a checkpoint */
+            EnvironmentStats before = env.getStats(null);
+            directory.sync(Arrays.asList("_0.frq"));
+            EnvironmentStats after = env.getStats(null);
+            assertEquals(before.getNCheckpoints(), after.getNCheckpoints());
+            assertEquals(before.getNFSyncs() + 1, after.getNFSyncs());
+            assertTrue(Arrays.equals(new String[] { "_0.frq" }, directory.listAll()));
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testSync() throws Exception {
+        final int length = 2 * 16384 + 100;
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        JEMongoDirectory store = new JEMongoDirectory(env,dbConfig);
+        try {
+            store.beginTransaction();
+            IndexOutput[] outputs = new IndexOutput[3];
+            for (int i = 0; i < outputs.length; i++) {
+                outputs[i] = store.createOutput("_" + i + ".frq");
+                outputs[i].writeBytes(data, length);
+            }
+            assertEquals(6, countBlocks(store));
+
+            /* only the named outputs have their last block flushed */
+            store.sync(Arrays.asList("_0.frq", "_1.frq", "_5.frq"));
+            assertEquals(8, countBlocks(store));
+            store.flush();
+            assertEquals(9, countBlocks(store));
+
+            for (int i = 0; i < outputs.length; i++)
+                outputs[i].close();
+            store.commitTransaction();
+            assertEquals(9, countBlocks(store));
+
+            IndexInput input = store.openInput("_2.frq");
+            byte[] read = new byte[length];
+            input.readBytes(read, 0, length);
+            assertTrue(Arrays.equals(data, read));
+            input.close();
+
+            /* the sync threads write within the caller's transaction */
+            store.beginTransaction();
+            for (int i = 0; i < 2; i++)
+                store.createOutput("_" + (i + 3) + ".frq").writeBytes(data, length);
+            store.sync(Arrays.asList("_3.frq", "_4.frq"));
+            assertEquals(15, countBlocks(store));
+            store.abortTransaction();
+            assertEquals(9, countBlocks(store));
+        } finally {
+            store.close();
+        }
+    }
+
+    protected int countBlocks(JEMongoDirectory store) throws DatabaseException {
+        Cursor cursor = store.getBlocks().openCursor(store.getTransaction(), null);
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry data = new DatabaseEntry();
+        int count = 0;
+
+        try {
+            while (cursor.getNext(key, data, null) == OperationStatus.SUCCESS)
+                count++;
+        } finally {
+            cursor.close();
+        }
+
+        return count;
+    }
+
+    public void testLocks() throws Exception {
+        JEMongoDirectory first = new JEMongoDirectory(env,dbConfig);
+        JEMongoDirectory second = new JEMongoDirectory(env,dbConfig);
+        try {
+            first.setLockLease(300L, 20L);
+            second.setLockLease(300L, 20L);
+
+            Lock lock = first.makeLock("write.lock");
+            Lock other = second.makeLock("write.lock");
+            assertTrue(lock.obtain());
+            assertFalse(first.makeLock("write.lock").obtain());
+            assertFalse(other.obtain());
+            assertTrue(other.isLocked());
+
+            /* the heartbeat keeps the lease from expiring */
+            Thread.sleep(700L);
+            assertFalse(other.obtain());
+
+            lock.release();
+            assertFalse(other.isLocked());
+            assertTrue(other.obtain(1000L));
+
+            Lock standby = first.makeLock("write.lock");
+            try {
+                standby.obtain(100L);
+                fail("obtained a held lock");
+            } catch (LockObtainFailedException e) {
+            }
+
+            /* a holder that goes away without releasing loses the lock when its lease expires */
+            second.close();
+            second = null;
+            assertTrue(standby.obtain(5000L));
+            standby.release();
+
+            Lock cleared = first.makeLock("write.lock");
+            assertTrue(cleared.obtain());
+            first.clearLock("write.lock");
+            assertFalse(cleared.isLocked());
+            cleared.release();
+
+            /* as from IndexWriter.unlock, another instance releases a lock only when it is free */
+            Lock held = first.makeLock("write.lock");
+            assertTrue(held.obtain());
+            try {
+                first.makeLock("write.lock").release();
+                fail("released a held lock");
+            } catch (LockReleaseFailedException e) {
+            }
+            assertTrue(held.isLocked());
+            held.release();
+            assertFalse(held.isLocked());
+            first.makeLock("write.lock").release();
+        } finally {
+            if (second != null)
+                second.close();
+            first.close();
+        }
+    }
 }